@@ -0,0 +1,28 @@
+#!/bin/sh
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+# Records an AppCDS archive of the classes loaded by a run on a small sample, including those of the
+# jdk.incubator.vector module. calculate_average_datdenkikniet.sh picks it up when present.
+JAR="$(pwd)/target/average-1.0.0-SNAPSHOT.jar"
+ARCHIVE="$(pwd)/target/CalculateAverage_datdenkikniet.jsa"
+SAMPLE="$(pwd)/src/test/resources/samples/measurements-10000-unique-keys.txt"
+JAVA_OPTS="--enable-preview --add-modules=jdk.incubator.vector --enable-native-access=ALL-UNNAMED"
+
+WORK_DIR=$(mktemp -d)
+ln -s "$SAMPLE" "$WORK_DIR/measurements.txt"
+(cd "$WORK_DIR" && java $JAVA_OPTS -XX:ArchiveClassesAtExit="$ARCHIVE" --class-path "$JAR" dev.morling.onebrc.CalculateAverage_datdenkikniet > /dev/null)
+rm -rf "$WORK_DIR"
@@ -0,0 +1,2946 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Signal;
+import sun.misc.Unsafe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * Two-stage solution in the spirit of simdjson. The file is memory mapped and split into one segment per core,
+ * each segment is then processed block by block:
+ *
+ * 1. The structural stage scans a block with vector compares (as in merykitty's solution) and records every ';'
+ *    and '\n' in a bitmap, which is then flattened into an array of separator positions. This stage does not
+ *    look at the data beyond the separators and is bound by memory bandwidth only.
+ * 2. The parse stage walks the separator positions pairwise. Since both ends of the name and the number are known
+ *    up front, neither the hash nor the number decode (the SWAR decode of royvanrijn/merykitty) need to branch
+ *    per byte.
+ *
+ * Optional modes are selected via system properties, e.g. JDK_JAVA_OPTIONS="-Donebrc.batch=8":
+ *
+ * onebrc.batch=K   resolve the table slots of K rows at a time so that their cache misses overlap. With 10k stations
+ *                  the table stays in cache and this is slower than the default on a single core
+ * onebrc.streams=N parse N (2 or 3) interleaved sub-ranges of each block, one row of each per iteration. Within
+ *                  noise of the default on a single core with 10k stations
+ * onebrc.madvise=A comma separated madvise(2) advice for the mapping (Linux only): sequential, willneed, hugepage
+ *                  and populate, the latter pre-faults each segment from its own worker thread
+ * onebrc.prefetch=M touch the pages M MB ahead of each worker from a helper thread
+ * onebrc.faults    report page faults and throughput on stderr
+ * onebrc.io=X      how the file is read: mmap (default), read for positional reads into a pool of buffers, or
+ *                  direct for the same with O_DIRECT, bypassing (and not polluting) the page cache, or async
+ *                  for a pipeline of asynchronous reads into a ring of buffers
+ * onebrc.readers=N number of reader threads of the read/direct backends
+ * onebrc.queue=N   number of buffers of the read/direct/async backends, i.e. the pieces read ahead of the parser
+ * onebrc.piece=M   size of the pieces read by the read/direct/async backends in MB
+ * onebrc.inflight=N maximum number of outstanding reads of the async backend
+ * onebrc.memory=M  keep the input held in memory within M MB (minus the per-thread tables): mmap maps one window per
+ *                  thread at a time and unmaps it once parsed, the other backends shrink their pieces to fit the queue
+ * onebrc.spawn     run in a child JVM, which closes its stdout right after the result so that this process can exit
+ *                  while the child is still unmapping the file and shutting down
+ * onebrc.allocations report the heap allocation of each worker's parse phase on stderr and fail if it exceeds a
+ *                  budget per station, or if rehearsing on the start of the file never gets to a pass that allocates
+ *                  nothing, calculate_average_datdenkikniet_epsilon.sh runs with it under Epsilon GC
+ * onebrc.timings   report the duration of every phase and the statistics of every worker on stderr
+ * onebrc.jfr       emit the same data as the JFR events dev.morling.onebrc.Phase and dev.morling.onebrc.Worker, e.g.
+ *                  with -XX:StartFlightRecording=filename=1brc.jfr
+ * onebrc.hashstats report the probe lengths, load factor and the stations costing the most probes of the tables on
+ *                  stderr, to tune the hash function against real station names
+ * onebrc.progress  report throughput, ETA and the skew between the workers on stderr every second, or with
+ *                  onebrc.progress=jmx publish them as the MBean dev.morling.onebrc:type=Progress instead
+ * onebrc.stations=S only aggregate the comma separated stations S, or those listed one per line in file F with @F
+ * onebrc.prefix=P  only aggregate the stations whose name starts with P, together with onebrc.stations either matches
+ * onebrc.thresholds=T also count the rows of each station matching each of the comma separated predicates T, each one
+ *                  of >, >=, < or <= and a temperature, e.g. ">40.0,<0" for the rows above 40 °C and below zero
+ * onebrc.queries=Q answer the semicolon separated queries Q from a single scan, printing one line per query, each
+ *                  one of stats, percentiles=P (comma separated, e.g. 50,99) or thresholds=T (as onebrc.thresholds),
+ *                  optionally restricted to some stations with @S (as onebrc.stations), e.g. "stats;percentiles=50,90@
+ *                  Hamburg,Oslo". If all queries are restricted, only the rows of their stations are parsed.
+ * onebrc.top=K:S   print the K stations with the highest statistic S (min, mean, max or count) instead of all of them,
+ *                  several rankings can be given comma separated, e.g. "20:mean,20:max". Cannot be combined with
+ *                  onebrc.queries, onebrc.groups or onebrc.thresholds
+ * onebrc.bottom=K:S the same for the lowest
+ * onebrc.groups=G  also print the stations rolled up into groups, one line per semicolon separated level of G. A level
+ *                  is either prefix=N, grouping by the first N characters of the name, or @F, a file of station;group
+ *                  lines. A name missing from a file is looked up by its group of the previous level instead, so that
+ *                  e.g. "@regions.txt;@countries.txt" works with a file mapping the regions to countries
+ * onebrc.buckets=B read rows of the form station;epoch seconds;temperature and aggregate per station and time bucket,
+ *                  B being hour, day or a number of seconds. Combines with onebrc.thresholds and the station filters
+ *                  only, and always parses row by row, i.e. ignores onebrc.batch and onebrc.streams.
+ * onebrc.window=S  stream instead: tail the file (or read the pipe) measurements.txt and keep the statistics of the last
+ *                  S seconds per station, printed on SIGHUP and when the pipe is closed, and published as the MBean
+ *                  dev.morling.onebrc:type=Window. Combines with the station filters only.
+ * onebrc.slide=S   interval the window slides by in seconds, 1/60 of the window by default
+ * onebrc.processes=K split the file into K shards, aligned to rows as the segments of the threads, and parse each in a
+ *                  child JVM with its share of the cores. The children send their tables back over a pipe in binary,
+ *                  the result is merged and printed by this process. Not with onebrc.thresholds, percentiles or
+ *                  onebrc.buckets, whose state is not part of the partial tables, and only with onebrc.io=mmap.
+ * onebrc.numa      (Linux only) split the threads into one group per NUMA node as listed in /sys/devices/system/node,
+ *                  pin each group to the CPUs of its node and give it a contiguous range of the file, merge the tables
+ *                  of a group on its node first and report the pages allocated per node on stderr. Only with mmap and
+ *                  without onebrc.memory, together with onebrc.madvise=populate the pages of a range are faulted in
+ *                  on its node.
+ * onebrc.affinity=A (Linux only) pin every parse worker to a CPU of its own: with cores, to one SMT sibling of a
+ *                  distinct physical core as long as there are enough cores, with smt, to the siblings of a core
+ *                  before moving on to the next, so that pairs of workers share a core deliberately
+ */
+public class CalculateAverage_datdenkikniet {
+    private static final String FILE = "./measurements.txt";
+
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    // Size of the block indexed by the structural stage, small enough that the block and its index stay in L2.
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int TABLE_SIZE = 1 << 17;
+    // Names up to this length are kept inline in the table as two words.
+    private static final int SHORT_NAME_LENGTH = 2 * Long.BYTES;
+    private static final int NAMES_SIZE = 1 << 20;
+
+    private static final int BATCH_SIZE = Integer.getInteger("onebrc.batch", 0);
+    private static final int STREAMS = Integer.getInteger("onebrc.streams", 1);
+    private static final String MADVISE = System.getProperty("onebrc.madvise", "");
+    private static final long PREFETCH_DISTANCE = Long.getLong("onebrc.prefetch", 0) << 20;
+    private static final boolean FAULTS = flag("onebrc.faults");
+    private static final String IO = System.getProperty("onebrc.io", "mmap");
+    private static final boolean SPAWN = flag("onebrc.spawn");
+    private static final boolean ALLOCATIONS = flag("onebrc.allocations");
+    private static final boolean TIMINGS = flag("onebrc.timings");
+    private static final boolean JFR = flag("onebrc.jfr");
+    private static final boolean HASH_STATS = flag("onebrc.hashstats");
+    private static final boolean PROGRESS_JMX = "jmx".equals(System.getProperty("onebrc.progress"));
+    private static final boolean PROGRESS = PROGRESS_JMX || flag("onebrc.progress");
+    private static final List<Query> QUERIES = Query.parseAll(System.getProperty("onebrc.queries"));
+    private static final Thresholds THRESHOLDS = Thresholds.parse(Query.predicates(System.getProperty("onebrc.thresholds"), QUERIES));
+    private static final boolean HISTOGRAMS = QUERIES != null && QUERIES.stream().anyMatch(query -> query instanceof PercentileQuery);
+    // The stations of the percentile queries, null if one of them covers all stations.
+    private static final Set<String> PERCENTILE_STATIONS = HISTOGRAMS ? Query.percentileStations(QUERIES) : null;
+    private static final List<Ranking> RANKINGS = Ranking.parseAll(System.getProperty("onebrc.top"), System.getProperty("onebrc.bottom"));
+    private static final List<Grouping> GROUPINGS = Grouping.parseAll(System.getProperty("onebrc.groups"));
+    private static final long BUCKET_SECONDS = bucketSeconds(System.getProperty("onebrc.buckets"));
+    private static final long WINDOW_SECONDS = Long.getLong("onebrc.window", 0);
+    private static final long SLIDE_SECONDS = Long.getLong("onebrc.slide", Math.max(1, WINDOW_SECONDS / 60));
+    private static final int PROCESSES = Integer.getInteger("onebrc.processes", 1);
+    private static final StationFilter FILTER = StationFilter.create(System.getProperty("onebrc.stations"), System.getProperty("onebrc.prefix"), QUERIES);
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final Numa NUMA = flag("onebrc.numa") ? Numa.discover() : null;
+    private static final String AFFINITY = System.getProperty("onebrc.affinity");
+    private static final int[] WORKER_CPUS = AFFINITY != null ? placeWorkers(AFFINITY) : null;
+    private static final int READERS = Integer.getInteger("onebrc.readers", 2);
+    private static final int QUEUE_DEPTH = Integer.getInteger("onebrc.queue", 2 * THREADS);
+    private static final long MEMORY_BUDGET = Long.getLong("onebrc.memory", 0) << 20;
+    // Rough size of a table and its names, which count against the memory budget first.
+    private static final long TABLE_FOOTPRINT = 5L << 20;
+    private static final int MIN_PIECE_SIZE = 1 << 20;
+    private static final long INPUT_BUDGET = MEMORY_BUDGET > 0 ? Math.max(MEMORY_BUDGET - THREADS * TABLE_FOOTPRINT, (long) THREADS * MIN_PIECE_SIZE) : 0;
+    private static final int PIECE_SIZE = (int) Math.min(Integer.getInteger("onebrc.piece", 8) << 20,
+            INPUT_BUDGET > 0 ? Math.max(INPUT_BUDGET / QUEUE_DEPTH, MIN_PIECE_SIZE) : Integer.MAX_VALUE);
+    private static final long WINDOW_SIZE = Math.clamp(INPUT_BUDGET / THREADS, MIN_PIECE_SIZE, 64 << 20);
+    private static final int IN_FLIGHT = Integer.getInteger("onebrc.inflight", 4);
+    // Enough to complete the last row of a piece.
+    private static final int PIECE_OVERLAP = 128;
+
+    private static final int PAGE_SIZE = 4096;
+
+    // Heap allocation allowed to the parse phase of a worker: a small constant per block plus the Result of every new
+    // station, histogram included, which the blocks after it may spend as the histogram grows. One object per row of
+    // the about 5,000 in a block overdraws it. Until the JIT has compiled the structural stage, and again for a while
+    // after it deoptimizes it, its vectors are boxed at about 800 KB per block, so the first blocks of a worker are not
+    // charged and a worker fails only if most of the later blocks overdraw the allowance, as they do when it allocates
+    // per row.
+    private static final int WARMUP_BLOCKS = 64;
+    private static final long ALLOCATION_PER_STATION = 256 + (HISTOGRAMS ? Integer.BYTES * Result.HISTOGRAM_SIZE : 0);
+    private static final long ALLOCATION_PER_BLOCK = 1 << 10;
+    // That leaves inputs of a few blocks per worker, such as the samples of test.sh, unchecked. So before the parse
+    // phase the start of the file is parsed over and over by a scratch worker until a pass allocates nothing, that is
+    // the JIT has compiled the kernel, or 10 seconds or 1 GB are up. From the second pass on the scratch table holds every
+    // station of the data, so the last pass must not allocate at all, whatever the number of rows.
+    private static final long REHEARSAL_BYTES = 4 << 20;
+    private static final long REHEARSAL_NANOS = 10_000_000_000L;
+    private static final long REHEARSAL_LIMIT = 1L << 30;
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = ALLOCATIONS ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+    // Holding the current result for a single city.
+    private static class Result {
+        final long nameAddress;
+        final int nameLength;
+        final int hash;
+        int min;
+        int max;
+        long sum;
+        int count;
+        // Values range from -99.9 to 99.9.
+        static final int HISTOGRAM_SIZE = 1999;
+        static final int HISTOGRAM_LIMIT = HISTOGRAM_SIZE / 2;
+
+        // Rows matching each of the onebrc.thresholds predicates.
+        final int[] matches;
+        // Rows per value in tenths from histogramBase on, only for the stations of a percentile query. Covers the
+        // values seen so far plus some slack, which is a fraction of the full range for real stations.
+        int[] histogram;
+        int histogramBase;
+
+        private Result(long nameAddress, int nameLength, int hash) {
+            this.nameAddress = nameAddress;
+            this.nameLength = nameLength;
+            this.hash = hash;
+            this.min = Integer.MAX_VALUE;
+            this.max = Integer.MIN_VALUE;
+            this.matches = THRESHOLDS != null ? new int[THRESHOLDS.bounds.length] : null;
+            // Checked once per station and table, the results of groups and windows have no name and need none.
+            if (HISTOGRAMS && nameLength > 0 && (PERCENTILE_STATIONS == null || PERCENTILE_STATIONS.contains(name()))) {
+                this.histogram = new int[0];
+            }
+        }
+
+        private void add(int value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+            if (THRESHOLDS != null) {
+                THRESHOLDS.count(value, matches);
+            }
+            if (histogram != null) {
+                int i = value - histogramBase;
+                if (i < 0 || i >= histogram.length) {
+                    growHistogram(value, value);
+                    i = value - histogramBase;
+                }
+                histogram[i]++;
+            }
+        }
+
+        // Widens the histogram to cover [low, high] with some slack on both sides, so that it grows a few times only.
+        private void growHistogram(int low, int high) {
+            if (histogram.length > 0) {
+                low = Math.min(low, histogramBase);
+                high = Math.max(high, histogramBase + histogram.length - 1);
+            }
+            int slack = Math.max(16, (high - low) / 2);
+            low = Math.max(-HISTOGRAM_LIMIT, low - slack);
+            high = Math.min(HISTOGRAM_LIMIT, high + slack);
+            int[] grown = new int[high - low + 1];
+            if (histogram.length > 0) {
+                System.arraycopy(histogram, 0, grown, histogramBase - low, histogram.length);
+            }
+            histogram = grown;
+            histogramBase = low;
+        }
+
+        // Starts over, for the next interval of onebrc.window.
+        private void clear() {
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            sum = 0;
+            count = 0;
+        }
+
+        private boolean matches(long nameAddress, int nameLength, int hash) {
+            return this.hash == hash && this.nameLength == nameLength && nameEquals(this.nameAddress, nameAddress, nameLength);
+        }
+
+        // Accumulate another result into this one.
+        private void add(Result other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+            if (THRESHOLDS != null) {
+                for (int i = 0; i < matches.length; i++) {
+                    matches[i] += other.matches[i];
+                }
+            }
+            if (histogram != null && other.histogram != null && other.histogram.length > 0) {
+                int otherEnd = other.histogramBase + other.histogram.length;
+                if (other.histogramBase < histogramBase || otherEnd > histogramBase + histogram.length) {
+                    growHistogram(other.histogramBase, otherEnd - 1);
+                }
+                for (int i = 0; i < other.histogram.length; i++) {
+                    histogram[other.histogramBase - histogramBase + i] += other.histogram[i];
+                }
+            }
+        }
+
+        private String name() {
+            byte[] bytes = new byte[nameLength];
+            UNSAFE.copyMemory(null, nameAddress, bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, nameLength);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public String toString() {
+            // The predicates of thresholds= queries only, if any, are printed by their query lines.
+            return THRESHOLDS != null && THRESHOLDS.own > 0 ? stats() + THRESHOLDS.format(matches, 0, THRESHOLDS.own) : stats();
+        }
+
+        private String stats() {
+            return round(min) + "/" + round(((double) sum) / count) + "/" + round(max);
+        }
+
+        // Nearest rank percentile, the smallest value that at least the given percentage of the rows do not exceed.
+        private double percentile(double percentage) {
+            long rank = Math.max(1, (long) Math.ceil(percentage / 100 * count));
+            long seen = 0;
+            int i = 0;
+            while ((seen += histogram[i]) < rank) {
+                i++;
+            }
+            return round(histogramBase + i);
+        }
+
+        // Values are kept in tenths of a degree, rounding them before scaling avoids the representation error of
+        // dividing by ten first.
+        private static double round(double value) {
+            return Math.round(value) / 10.0;
+        }
+    }
+
+    // Two-tier linear probing table, one per thread. Names of up to 16 bytes are stored inline as two masked words,
+    // so a probe compares them with two XORs and never touches the mapped file. Longer names go to a second table
+    // and are compared byte by byte against their first occurrence in the file.
+    private static class Table {
+        // Names are never empty and contain no NUL bytes, so a zero first word marks a free slot.
+        final long[] shortKeys = new long[2 * TABLE_SIZE];
+        final Result[] shortResults = new Result[TABLE_SIZE];
+        final Result[] longResults = new Result[TABLE_SIZE];
+        private final Names names = new Names();
+        int size;
+        // Probes past the home slot of a name.
+        long collisions;
+
+        private Result get(long word0, long word1, long nameAddress, int nameLength, int hash) {
+            if (nameLength <= SHORT_NAME_LENGTH) {
+                return getShort(word0, word1, nameAddress, nameLength, hash);
+            }
+            return getLong(nameAddress, nameLength, hash);
+        }
+
+        private Result getShort(long word0, long word1, long nameAddress, int nameLength, int hash) {
+            int index = hash & (TABLE_SIZE - 1);
+            while (true) {
+                long key0 = shortKeys[2 * index];
+                if (((key0 ^ word0) | (shortKeys[2 * index + 1] ^ word1)) == 0) {
+                    return shortResults[index];
+                }
+                if (key0 == 0) {
+                    Result result = new Result(names.copy(nameAddress, nameLength), nameLength, hash);
+                    shortKeys[2 * index] = word0;
+                    shortKeys[2 * index + 1] = word1;
+                    shortResults[index] = result;
+                    size++;
+                    return result;
+                }
+                index = (index + 1) & (TABLE_SIZE - 1);
+                collisions++;
+            }
+        }
+
+        private Result getLong(long nameAddress, int nameLength, int hash) {
+            int index = hash & (TABLE_SIZE - 1);
+            while (true) {
+                Result result = longResults[index];
+                if (result == null) {
+                    result = new Result(names.copy(nameAddress, nameLength), nameLength, hash);
+                    longResults[index] = result;
+                    size++;
+                    return result;
+                }
+                if (result.matches(nameAddress, nameLength, hash)) {
+                    return result;
+                }
+                index = (index + 1) & (TABLE_SIZE - 1);
+                collisions++;
+            }
+        }
+
+        // Accumulates the results of another table, matching the names by their bytes. Stations that only got through
+        // the hash of the filter are kept, the output checks the names it prints.
+        private void addAll(Table other) {
+            for (Result[] results : new Result[][]{ other.shortResults, other.longResults }) {
+                for (Result r : results) {
+                    if (r == null) {
+                        continue;
+                    }
+                    // The names are packed into slabs, read them byte by byte so as not to run past the last one.
+                    long word0 = readTail(r.nameAddress, Math.min(r.nameLength, Long.BYTES));
+                    long word1 = readTail(r.nameAddress + Long.BYTES, Math.clamp(r.nameLength - Long.BYTES, 0, Long.BYTES));
+                    get(word0, word1, r.nameAddress, r.nameLength, r.hash).add(r);
+                }
+            }
+        }
+
+        private long rows() {
+            long rows = 0;
+            for (Result[] results : new Result[][]{ shortResults, longResults }) {
+                for (Result result : results) {
+                    if (result != null) {
+                        rows += result.count;
+                    }
+                }
+            }
+            return rows;
+        }
+    }
+
+    // Names are copied on first sight, the input they were read from may be reused or unmapped later.
+    private static class Names {
+        private MemorySegment slab = MemorySegment.NULL;
+        private long offset;
+
+        private long copy(long nameAddress, int nameLength) {
+            if (offset + nameLength > slab.byteSize()) {
+                slab = Arena.global().allocate(NAMES_SIZE);
+                offset = 0;
+            }
+            long address = slab.address() + offset;
+            UNSAFE.copyMemory(nameAddress, address, nameLength);
+            offset += nameLength;
+            return address;
+        }
+    }
+
+    // Linear probing table of onebrc.buckets, keyed by station and time bucket, one per thread. Unlike Table it grows,
+    // as the number of buckets is not known up front. Names of up to 16 bytes are told apart by their words and length,
+    // longer ones are compared byte by byte.
+    private static class TimedTable {
+        private final Names names = new Names();
+        // The masked words of the first 16 bytes of the name and the bucket of every slot.
+        long[] keys = new long[3 * TABLE_SIZE];
+        Result[] results = new Result[TABLE_SIZE];
+        int size;
+
+        private Result get(long word0, long word1, long nameAddress, int nameLength, int nameHash, long bucket) {
+            int hash = bucketHash(nameHash, bucket);
+            int mask = results.length - 1;
+            int index = hash & mask;
+            while (true) {
+                Result result = results[index];
+                if (result == null) {
+                    result = new Result(names.copy(nameAddress, nameLength), nameLength, hash);
+                    keys[3 * index] = word0;
+                    keys[3 * index + 1] = word1;
+                    keys[3 * index + 2] = bucket;
+                    results[index] = result;
+                    // Keep the load factor at most one half.
+                    if (++size > results.length / 2) {
+                        grow();
+                    }
+                    return result;
+                }
+                if (((keys[3 * index] ^ word0) | (keys[3 * index + 1] ^ word1) | (keys[3 * index + 2] ^ bucket)) == 0 && result.nameLength == nameLength
+                        && (nameLength <= SHORT_NAME_LENGTH || nameEquals(result.nameAddress, nameAddress, nameLength))) {
+                    return result;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        // Accumulates the results of another table, matching them by name bytes and bucket.
+        private void addAll(TimedTable other) {
+            for (int i = 0; i < other.results.length; i++) {
+                Result r = other.results[i];
+                if (r != null) {
+                    long word0 = other.keys[3 * i];
+                    long word1 = other.keys[3 * i + 1];
+                    get(word0, word1, r.nameAddress, r.nameLength, hash(word0, word1, r.nameLength), other.keys[3 * i + 2]).add(r);
+                }
+            }
+        }
+
+        private void grow() {
+            long[] grownKeys = new long[2 * keys.length];
+            Result[] grown = new Result[2 * results.length];
+            int mask = grown.length - 1;
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) {
+                    int index = results[i].hash & mask;
+                    while (grown[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    System.arraycopy(keys, 3 * i, grownKeys, 3 * index, 3);
+                    grown[index] = results[i];
+                }
+            }
+            keys = grownKeys;
+            results = grown;
+        }
+
+        private static int bucketHash(int nameHash, long bucket) {
+            return (int) (((nameHash ^ bucket) * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+    }
+
+    // One report of onebrc.queries. All queries are answered from the same scan, every station accumulates what any of
+    // the queries needs and each query formats its own part, restricted to its own stations if it has any.
+    private static abstract class Query {
+        final String spec;
+        final Set<String> stations;
+
+        private Query(String spec, Set<String> stations) {
+            this.spec = spec;
+            this.stations = stations;
+        }
+
+        abstract String format(Result result);
+
+        private static List<Query> parseAll(String specs) {
+            if (specs == null) {
+                return null;
+            }
+            List<Query> queries = new ArrayList<>();
+            for (String spec : specs.split(";")) {
+                spec = spec.strip();
+                int at = spec.indexOf('@');
+                Set<String> stations = at >= 0 ? StationFilter.parseStations(spec.substring(at + 1)) : null;
+                String kind = at >= 0 ? spec.substring(0, at) : spec;
+                int equals = kind.indexOf('=');
+                String arguments = equals >= 0 ? kind.substring(equals + 1) : "";
+                queries.add(switch (equals >= 0 ? kind.substring(0, equals) : kind) {
+                    case "stats" -> new StatsQuery(spec, stations);
+                    case "percentiles" -> new PercentileQuery(spec, stations, arguments);
+                    case "thresholds" -> new ThresholdQuery(spec, stations, arguments);
+                    default -> throw new IllegalArgumentException("Unknown query: " + spec);
+                });
+            }
+            return queries;
+        }
+
+        private static Set<String> percentileStations(List<Query> queries) {
+            Set<String> stations = new HashSet<>();
+            for (Query query : queries) {
+                if (query instanceof PercentileQuery) {
+                    if (query.stations == null) {
+                        return null;
+                    }
+                    stations.addAll(query.stations);
+                }
+            }
+            return stations;
+        }
+
+        // The predicates of onebrc.thresholds followed by those of the threshold queries, which learn their offset.
+        private static List<String> predicates(String thresholds, List<Query> queries) {
+            List<String> predicates = new ArrayList<>();
+            if (thresholds != null) {
+                predicates.addAll(Arrays.asList(thresholds.split(",")));
+            }
+            for (Query query : queries != null ? queries : List.<Query> of()) {
+                if (query instanceof ThresholdQuery thresholdQuery) {
+                    thresholdQuery.offset = predicates.size();
+                    predicates.addAll(Arrays.asList(thresholdQuery.predicates));
+                }
+            }
+            return predicates;
+        }
+    }
+
+    private static class StatsQuery extends Query {
+        private StatsQuery(String spec, Set<String> stations) {
+            super(spec, stations);
+        }
+
+        @Override
+        String format(Result result) {
+            return result.stats();
+        }
+    }
+
+    private static class PercentileQuery extends Query {
+        private final double[] percentages;
+
+        private PercentileQuery(String spec, Set<String> stations, String arguments) {
+            super(spec, stations);
+            percentages = Arrays.stream(arguments.split(",")).mapToDouble(Double::parseDouble).toArray();
+            for (double percentage : percentages) {
+                if (percentage < 0 || percentage > 100) {
+                    throw new IllegalArgumentException("Percentile out of range: " + percentage);
+                }
+            }
+        }
+
+        @Override
+        String format(Result result) {
+            StringBuilder format = new StringBuilder();
+            for (double percentage : percentages) {
+                format.append(format.isEmpty() ? "" : "/").append(result.percentile(percentage));
+            }
+            return format.toString();
+        }
+    }
+
+    private static class ThresholdQuery extends Query {
+        private final String[] predicates;
+        // Index of the first predicate of this query in THRESHOLDS.
+        private int offset;
+
+        private ThresholdQuery(String spec, Set<String> stations, String arguments) {
+            super(spec, stations);
+            predicates = arguments.split(",");
+        }
+
+        @Override
+        String format(Result result) {
+            String counts = THRESHOLDS.format(result.matches, offset, offset + predicates.length);
+            // Without the leading space and parentheses.
+            return counts.substring(2, counts.length() - 1);
+        }
+    }
+
+    // A level of onebrc.groups.
+    private static class Grouping {
+        static final String UNMAPPED = "(unmapped)";
+
+        final String spec;
+        // Null for a prefix rule.
+        final Map<String, String> mapping;
+        final int prefixLength;
+
+        private Grouping(String spec, Map<String, String> mapping, int prefixLength) {
+            this.spec = spec;
+            this.mapping = mapping;
+            this.prefixLength = prefixLength;
+        }
+
+        private static List<Grouping> parseAll(String specs) {
+            if (specs == null) {
+                return null;
+            }
+            List<Grouping> groupings = new ArrayList<>();
+            for (String spec : specs.split(";")) {
+                spec = spec.strip();
+                if (spec.startsWith("prefix=")) {
+                    groupings.add(new Grouping(spec, null, Integer.parseInt(spec.substring("prefix=".length()))));
+                }
+                else if (spec.startsWith("@")) {
+                    Map<String, String> mapping = new HashMap<>();
+                    try {
+                        for (String line : Files.readAllLines(Path.of(spec.substring(1)))) {
+                            int separator = line.lastIndexOf(';');
+                            if (separator > 0) {
+                                mapping.put(line.substring(0, separator).strip(), line.substring(separator + 1).strip());
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new IllegalArgumentException("Cannot read the groups of " + spec, e);
+                    }
+                    groupings.add(new Grouping(spec, mapping, 0));
+                }
+                else {
+                    throw new IllegalArgumentException("Expected prefix=N or @file as group level: " + spec);
+                }
+            }
+            return groupings;
+        }
+
+        // The group of a station, previous being its group on the level before, or null on the first level.
+        private String group(String station, String previous) {
+            if (mapping == null) {
+                return station.substring(0, station.offsetByCodePoints(0, Math.min(prefixLength, station.codePointCount(0, station.length()))));
+            }
+            String group = mapping.get(station);
+            if (group == null && previous != null) {
+                group = mapping.get(previous);
+            }
+            return group != null ? group : UNMAPPED;
+        }
+    }
+
+    // A top-K or bottom-K report of onebrc.top/onebrc.bottom. The K best stations are kept in a bounded heap with the
+    // worst of them on top, ties are broken by name.
+    private static class Ranking {
+        final String label;
+        final int size;
+        // Best first.
+        final Comparator<Result> order;
+        // The count is not part of the statistics printed for a station, so a ranking by it prints it as well.
+        final boolean byCount;
+
+        private Ranking(String label, int size, Comparator<Result> order, boolean byCount) {
+            this.label = label;
+            this.size = size;
+            this.order = order;
+            this.byCount = byCount;
+        }
+
+        private static List<Ranking> parseAll(String top, String bottom) {
+            if (top == null && bottom == null) {
+                return null;
+            }
+            List<Ranking> rankings = new ArrayList<>();
+            for (String spec : top != null ? top.split(",") : new String[0]) {
+                rankings.add(parse("top", spec, true));
+            }
+            for (String spec : bottom != null ? bottom.split(",") : new String[0]) {
+                rankings.add(parse("bottom", spec, false));
+            }
+            return rankings;
+        }
+
+        // K:statistic, the statistic being min, mean, max or count.
+        private static Ranking parse(String kind, String spec, boolean top) {
+            String[] parts = spec.strip().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected K:statistic for onebrc." + kind + ": " + spec);
+            }
+            int size = Integer.parseInt(parts[0]);
+            ToDoubleFunction<Result> statistic = switch (parts[1]) {
+                case "min" -> r -> r.min;
+                case "mean" -> r -> (double) r.sum / r.count;
+                case "max" -> r -> r.max;
+                case "count" -> r -> r.count;
+                default -> throw new IllegalArgumentException("Unknown statistic, expected min, mean, max or count: " + parts[1]);
+            };
+            Comparator<Result> ascending = Comparator.comparingDouble(statistic);
+            Comparator<Result> order = (top ? ascending.reversed() : ascending).thenComparing(Ranking::compareNames);
+            return new Ranking(kind + " " + size + " by " + parts[1], size, order, parts[1].equals("count"));
+        }
+
+        private List<Result> select(Table table) {
+            PriorityQueue<Result> heap = new PriorityQueue<>(size + 1, order.reversed());
+            for (Result[] results : new Result[][]{ table.shortResults, table.longResults }) {
+                for (Result result : results) {
+                    if (result == null) {
+                        continue;
+                    }
+                    boolean enters = heap.size() < size || (size > 0 && order.compare(result, heap.peek()) < 0);
+                    // The filter of the parser may let other stations through, only those entering the heap are
+                    // checked by name.
+                    if (!enters || (FILTER != null && !FILTER.contains(result.name()))) {
+                        continue;
+                    }
+                    if (heap.size() == size) {
+                        heap.poll();
+                    }
+                    heap.add(result);
+                }
+            }
+            List<Result> winners = new ArrayList<>(heap);
+            winners.sort(order);
+            return winners;
+        }
+
+        // Unsigned byte order of UTF-8 is the order of the code points.
+        private static int compareNames(Result a, Result b) {
+            int length = Math.min(a.nameLength, b.nameLength);
+            for (int i = 0; i < length; i++) {
+                int diff = Byte.toUnsignedInt(UNSAFE.getByte(a.nameAddress + i)) - Byte.toUnsignedInt(UNSAFE.getByte(b.nameAddress + i));
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return a.nameLength - b.nameLength;
+        }
+    }
+
+    // Predicates on the temperature of a row, counted per station. Every predicate is normalized to either
+    // value > bound or value < bound on the tenths, so that it is counted with a subtraction and a shift.
+    private static class Thresholds {
+        final String[] names;
+        final int[] bounds;
+        // 1 for value > bound, -1 for value < bound.
+        final int[] signs;
+        // The predicates of onebrc.thresholds come first, followed by those of the threshold queries.
+        final int own;
+
+        private Thresholds(String[] names, int[] bounds, int[] signs, int own) {
+            this.names = names;
+            this.bounds = bounds;
+            this.signs = signs;
+            this.own = own;
+        }
+
+        private static Thresholds parse(List<String> predicates) {
+            if (predicates.isEmpty()) {
+                return null;
+            }
+            String[] names = predicates.toArray(new String[0]);
+            int[] bounds = new int[names.length];
+            int[] signs = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i] = names[i].strip();
+                int operatorLength = name.startsWith(">=") || name.startsWith("<=") ? 2 : 1;
+                int value;
+                try {
+                    value = new BigDecimal(name.substring(operatorLength)).movePointRight(1).intValueExact();
+                }
+                catch (ArithmeticException | NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid temperature in predicate: " + name, e);
+                }
+                switch (name.substring(0, operatorLength)) {
+                    case ">" -> {
+                        bounds[i] = value;
+                        signs[i] = 1;
+                    }
+                    case ">=" -> {
+                        bounds[i] = value - 1;
+                        signs[i] = 1;
+                    }
+                    case "<" -> {
+                        bounds[i] = value;
+                        signs[i] = -1;
+                    }
+                    case "<=" -> {
+                        bounds[i] = value + 1;
+                        signs[i] = -1;
+                    }
+                    default -> throw new IllegalArgumentException("Predicate must start with >, >=, < or <=: " + name);
+                }
+            }
+            int own = predicates.size();
+            for (Query query : QUERIES != null ? QUERIES : List.<Query> of()) {
+                if (query instanceof ThresholdQuery thresholdQuery) {
+                    own = Math.min(own, thresholdQuery.offset);
+                }
+            }
+            return new Thresholds(names, bounds, signs, own);
+        }
+
+        private void count(int value, int[] matches) {
+            for (int i = 0; i < bounds.length; i++) {
+                matches[i] += (signs[i] * (bounds[i] - value)) >>> 31;
+            }
+        }
+
+        // Formats the counts of the predicates in [from, to).
+        private String format(int[] matches, int from, int to) {
+            StringBuilder result = new StringBuilder(" (");
+            for (int i = from; i < to; i++) {
+                result.append(i > from ? ", " : "").append(names[i]).append(": ").append(matches[i]);
+            }
+            return result.append(')').toString();
+        }
+    }
+
+    // Selects the stations to aggregate. Rows of other stations are dropped right after hashing their name, before the
+    // number is decoded and the table is touched. The station set is checked with a bitset over the hash, small enough
+    // to stay in L1, which may let a few other stations through. The prefix is compared against the masked name words,
+    // so it is exact for up to 16 bytes. Whatever gets through is checked by name once per station in the merge.
+    private static class StationFilter {
+        private static final int BITS = 1 << 16;
+
+        private final Set<String> stations;
+        private final long[] bits;
+        private final String prefix;
+        private final long prefixWord0;
+        private final long prefixWord1;
+        private final long prefixMask0;
+        private final long prefixMask1;
+
+        private StationFilter(Set<String> stations, String prefix) {
+            this.stations = stations;
+            this.prefix = prefix;
+            if (stations != null) {
+                bits = new long[BITS / Long.SIZE];
+                for (String station : stations) {
+                    byte[] name = station.getBytes(StandardCharsets.UTF_8);
+                    int bit = hash(word(name, 0), word(name, Long.BYTES), name.length) & (BITS - 1);
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+            else {
+                bits = null;
+            }
+            if (prefix != null) {
+                byte[] name = prefix.getBytes(StandardCharsets.UTF_8);
+                prefixWord0 = word(name, 0);
+                prefixWord1 = word(name, Long.BYTES);
+                prefixMask0 = firstWord(-1L, name.length);
+                prefixMask1 = secondWord(-1L, name.length);
+            }
+            else {
+                prefixWord0 = prefixWord1 = prefixMask0 = prefixMask1 = 0;
+            }
+        }
+
+        private static StationFilter create(String stations, String prefix, List<Query> queries) {
+            if (stations == null && prefix == null) {
+                // Queries that are all restricted to some stations only need the rows of those.
+                if (queries == null || queries.stream().anyMatch(query -> query.stations == null)) {
+                    return null;
+                }
+                Set<String> names = new HashSet<>();
+                queries.forEach(query -> names.addAll(query.stations));
+                return new StationFilter(names, null);
+            }
+            return new StationFilter(stations != null ? parseStations(stations) : null, prefix);
+        }
+
+        // Comma separated station names, or @ and a file with one name per line.
+        private static Set<String> parseStations(String stations) {
+            try {
+                List<String> list = stations.startsWith("@") ? Files.readAllLines(Path.of(stations.substring(1))) : Arrays.asList(stations.split(","));
+                Set<String> names = new HashSet<>();
+                for (String name : list) {
+                    if (!name.isBlank()) {
+                        names.add(name.strip());
+                    }
+                }
+                return names;
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the stations of " + stations, e);
+            }
+        }
+
+        // The up to 8 bytes of the name starting at offset as a little endian word, as read from the file.
+        private static long word(byte[] name, int offset) {
+            long word = 0;
+            for (int i = offset; i < Math.min(name.length, offset + Long.BYTES); i++) {
+                word |= (name[i] & 0xFFL) << ((i - offset) << 3);
+            }
+            return word;
+        }
+
+        private boolean mightContain(long word0, long word1, int hash) {
+            if (bits != null && (bits[(hash & (BITS - 1)) >>> 6] & (1L << hash)) != 0) {
+                return true;
+            }
+            return prefix != null && ((word0 ^ prefixWord0) & prefixMask0) == 0 && ((word1 ^ prefixWord1) & prefixMask1) == 0;
+        }
+
+        private boolean contains(String name) {
+            return (stations != null && stations.contains(name)) || (prefix != null && name.startsWith(prefix));
+        }
+    }
+
+    // Rows parsed ahead of their table lookup, as struct of arrays.
+    private static class Batch {
+        final long[] nameAddresses;
+        final int[] nameLengths;
+        final long[] words0;
+        final long[] words1;
+        final int[] hashes;
+        final int[] numbers;
+        final Result[] slots;
+
+        private Batch(int size) {
+            nameAddresses = new long[size];
+            nameLengths = new int[size];
+            words0 = new long[size];
+            words1 = new long[size];
+            hashes = new int[size];
+            numbers = new int[size];
+            slots = new Result[size];
+        }
+    }
+
+    // Stage one: marks every ';' and '\n' of a block. The bitmap holds one bit per input byte, positions holds the
+    // flattened offsets of all set bits relative to the start of the block.
+    private static class StructuralIndex {
+        final long[] bitmap = new long[BLOCK_SIZE / Long.SIZE];
+        // Separators are never adjacent in valid input.
+        final int[] positions = new int[BLOCK_SIZE / 2 + 2];
+        int count;
+
+        private void build(MemorySegment data, long offset, int length) {
+            int words = (length + Long.SIZE - 1) / Long.SIZE;
+            long vectorLimit = data.byteSize() - Long.SIZE;
+            for (int word = 0; word < words; word++) {
+                long wordOffset = offset + (long) word * Long.SIZE;
+                long bits = 0;
+                if (wordOffset <= vectorLimit) {
+                    for (int lane = 0; lane < Long.SIZE; lane += BYTE_SPECIES.length()) {
+                        var bytes = ByteVector.fromMemorySegment(BYTE_SPECIES, data, wordOffset + lane, ByteOrder.nativeOrder());
+                        long separators = bytes.compare(VectorOperators.EQ, ';').or(bytes.compare(VectorOperators.EQ, '\n')).toLong();
+                        bits |= separators << lane;
+                    }
+                }
+                else {
+                    // Tail of the file, do not over-fetch.
+                    int available = (int) Math.min(Long.SIZE, data.byteSize() - wordOffset);
+                    for (int i = 0; i < available; i++) {
+                        byte b = data.get(ValueLayout.JAVA_BYTE, wordOffset + i);
+                        if (b == ';' || b == '\n') {
+                            bits |= 1L << i;
+                        }
+                    }
+                }
+                int remaining = length - word * Long.SIZE;
+                if (remaining < Long.SIZE) {
+                    bits &= (1L << remaining) - 1;
+                }
+                bitmap[word] = bits;
+            }
+
+            int n = 0;
+            for (int word = 0; word < words; word++) {
+                long bits = bitmap[word];
+                int base = word * Long.SIZE;
+                while (bits != 0) {
+                    positions[n++] = base + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+            count = n;
+        }
+    }
+
+    // A flag is set by -Dname or -Dname=true.
+    private static boolean flag(String name) {
+        String value = System.getProperty(name);
+        return value != null && (value.isEmpty() || Boolean.parseBoolean(value));
+    }
+
+    // Length of the time buckets of onebrc.buckets in seconds, 0 without it.
+    private static long bucketSeconds(String bucket) {
+        if (bucket == null) {
+            return 0;
+        }
+        long seconds = switch (bucket) {
+            case "hour" -> 3600;
+            case "day" -> 86400;
+            default -> Long.parseLong(bucket);
+        };
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Expected hour, day or a positive number of seconds for onebrc.buckets: " + bucket);
+        }
+        return seconds;
+    }
+
+    // A list of CPUs as in sysfs, e.g. 0-3,8-11.
+    private static int[] parseCpuList(String list) {
+        List<Integer> cpus = new ArrayList<>();
+        for (String range : list.isEmpty() ? new String[0] : list.split(",")) {
+            String[] bounds = range.split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Integer.parseInt(bounds[bounds.length - 1]);
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // The CPU of every worker thread for onebrc.affinity, out of those this process may run on. Physical cores are
+    // told apart by their SMT siblings in sysfs. If there are more workers than CPUs, the placement wraps around.
+    private static int[] placeWorkers(String mode) {
+        List<int[]> cores = new ArrayList<>();
+        try {
+            String allowedList = Files.readAllLines(Path.of("/proc/self/status")).stream().filter(line -> line.startsWith("Cpus_allowed_list:"))
+                    .map(line -> line.substring("Cpus_allowed_list:".length()).strip()).findFirst().orElseThrow();
+            Set<Integer> allowed = new HashSet<>();
+            for (int cpu : parseCpuList(allowedList)) {
+                allowed.add(cpu);
+            }
+            Set<String> seen = new HashSet<>();
+            for (int cpu : parseCpuList(allowedList)) {
+                String siblings = Files.readString(Path.of("/sys/devices/system/cpu/cpu" + cpu + "/topology/thread_siblings_list")).strip();
+                if (seen.add(siblings)) {
+                    cores.add(Arrays.stream(parseCpuList(siblings)).filter(allowed::contains).toArray());
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Cannot read the CPU topology", e);
+        }
+        List<Integer> order = new ArrayList<>();
+        switch (mode) {
+            case "cores" -> {
+                // The first sibling of every core, then the second one of every core, and so on.
+                int siblings = cores.stream().mapToInt(core -> core.length).max().orElse(0);
+                for (int sibling = 0; sibling < siblings; sibling++) {
+                    for (int[] core : cores) {
+                        if (sibling < core.length) {
+                            order.add(core[sibling]);
+                        }
+                    }
+                }
+            }
+            case "smt" -> cores.forEach(core -> Arrays.stream(core).forEach(order::add));
+            default -> throw new IllegalArgumentException("Expected cores or smt for onebrc.affinity: " + mode);
+        }
+        int[] placement = new int[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            placement[i] = order.get(i % order.size());
+        }
+        return placement;
+    }
+
+    // Pins the worker thread of the given index as onebrc.numa or onebrc.affinity ask for.
+    private static void pinWorker(int index) {
+        if (NUMA != null) {
+            Native.pin(NUMA.cpus[NUMA.threadNodes[index]]);
+        }
+        else if (WORKER_CPUS != null) {
+            Native.pin(new int[]{ WORKER_CPUS[index] });
+        }
+    }
+
+    // Linux system calls, looked up on first use only.
+    private static class Native {
+        static final int MADV_SEQUENTIAL = 2;
+        static final int MADV_WILLNEED = 3;
+        static final int MADV_HUGEPAGE = 14;
+        static final int MADV_POPULATE_READ = 22;
+
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final MethodHandle MADVISE = LINKER.downcallHandle(LINKER.defaultLookup().find("madvise").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+        private static final MethodHandle SCHED_SETAFFINITY = LINKER.downcallHandle(LINKER.defaultLookup().find("sched_setaffinity").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS));
+
+        // Advises the kernel on the given range of the mapping, which is widened to whole pages. The mapping of a shard
+        // of onebrc.processes starts within a page, so the start is aligned as an address, not as an offset.
+        static void madvise(MemorySegment data, long offset, long length, int advice) {
+            long start = (data.address() + offset) & -PAGE_SIZE;
+            long end = data.address() + Math.min(data.byteSize(), offset + length);
+            try {
+                if ((int) MADVISE.invokeExact(MemorySegment.ofAddress(start), end - start, advice) != 0) {
+                    System.err.println("madvise(" + advice + ") failed, ignoring");
+                }
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Restricts the calling thread to the given CPUs.
+        static void pin(int[] cpus) {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment mask = arena.allocate((Arrays.stream(cpus).max().orElse(0) / Long.SIZE + 1) * Long.BYTES);
+                for (int cpu : cpus) {
+                    long word = mask.getAtIndex(ValueLayout.JAVA_LONG, cpu / Long.SIZE);
+                    mask.setAtIndex(ValueLayout.JAVA_LONG, cpu / Long.SIZE, word | (1L << cpu));
+                }
+                // Thread id 0 is the calling thread.
+                if ((int) SCHED_SETAFFINITY.invokeExact(0, mask.byteSize(), mask) != 0) {
+                    System.err.println("sched_setaffinity(" + Arrays.toString(cpus) + ") failed, ignoring");
+                }
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // NUMA topology of onebrc.numa. Worker threads are assigned to the nodes in proportion to their CPUs, consecutive
+    // threads share a node, so the segments of a node form a contiguous range of the file.
+    private static class Numa {
+        private static final Path NODES = Path.of("/sys/devices/system/node");
+
+        // Of the nodes with CPUs.
+        final int[] nodeIds;
+        final int[][] cpus;
+        final int[] threadNodes;
+        // The local_node and other_node counters of every node at startup.
+        final long[][] countersBefore;
+
+        private Numa(int[] nodeIds, int[][] cpus) {
+            this.nodeIds = nodeIds;
+            this.cpus = cpus;
+            int total = Arrays.stream(cpus).mapToInt(c -> c.length).sum();
+            threadNodes = new int[THREADS];
+            for (int i = 0, node = 0, covered = cpus[0].length; i < THREADS; i++) {
+                while ((long) i * total >= (long) covered * THREADS) {
+                    covered += cpus[++node].length;
+                }
+                threadNodes[i] = node;
+            }
+            countersBefore = counters();
+        }
+
+        private static Numa discover() {
+            Map<Integer, int[]> nodes = new TreeMap<>();
+            try (var paths = Files.list(NODES)) {
+                for (Path path : paths.toList()) {
+                    String name = path.getFileName().toString();
+                    if (name.matches("node\\d+")) {
+                        int[] cpus = parseCpuList(Files.readString(path.resolve("cpulist")).strip());
+                        if (cpus.length > 0) {
+                            nodes.put(Integer.parseInt(name.substring("node".length())), cpus);
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Cannot read the NUMA topology of " + NODES, e);
+            }
+            if (nodes.isEmpty()) {
+                throw new IllegalStateException("No NUMA node with CPUs in " + NODES);
+            }
+            return new Numa(nodes.keySet().stream().mapToInt(Integer::intValue).toArray(), nodes.values().toArray(new int[0][]));
+        }
+
+        // Pages allocated on each node by a task running on the same node (local_node) or on another one (other_node),
+        // system wide, from its numastat. Zero where missing.
+        private long[][] counters() {
+            long[][] counters = new long[nodeIds.length][2];
+            for (int node = 0; node < nodeIds.length; node++) {
+                try {
+                    for (String line : Files.readAllLines(NODES.resolve("node" + nodeIds[node]).resolve("numastat"))) {
+                        String[] fields = line.split(" ");
+                        switch (fields[0]) {
+                            case "local_node" -> counters[node][0] = Long.parseLong(fields[1]);
+                            case "other_node" -> counters[node][1] = Long.parseLong(fields[1]);
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    // Counters not available.
+                }
+            }
+            return counters;
+        }
+
+        // Merges the tables of the workers of every node on a thread pinned to the node, the result has one worker per
+        // node. Reports the placement of the pages allocated since startup, the numastat counters only count where pages
+        // were allocated, not the accesses to them, and include the other processes of the system.
+        private Worker[] merge(Worker[] workers) throws InterruptedException {
+            if (ALLOCATIONS) {
+                // The workers of a node are merged into one.
+                checkAllocations(workers);
+            }
+            Phase merge = Phase.start("node merge");
+            Worker[] nodeWorkers = new Worker[nodeIds.length];
+            Thread[] threads = new Thread[nodeIds.length];
+            for (int i = 0; i < nodeIds.length; i++) {
+                int node = i;
+                Worker nodeWorker = nodeWorkers[i] = new Worker();
+                threads[i] = new Thread(() -> {
+                    Native.pin(cpus[node]);
+                    for (int thread = 0; thread < workers.length; thread++) {
+                        if (threadNodes[thread] == node) {
+                            Worker worker = workers[thread];
+                            if (worker.timedTable != null) {
+                                nodeWorker.timedTable.addAll(worker.timedTable);
+                            }
+                            else {
+                                nodeWorker.table.addAll(worker.table);
+                            }
+                            nodeWorker.bytes += worker.bytes;
+                            nodeWorker.elapsedNanos = Math.max(nodeWorker.elapsedNanos, worker.elapsedNanos);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            merge.finish();
+
+            long[][] countersAfter = counters();
+            long local = 0;
+            long remote = 0;
+            for (int i = 0; i < nodeIds.length; i++) {
+                int node = i;
+                long localPages = countersAfter[i][0] - countersBefore[i][0];
+                long remotePages = countersAfter[i][1] - countersBefore[i][1];
+                System.err.printf("numa: node %d, %d cpus, %d threads, %,d bytes, %,d pages allocated locally, %,d for other nodes%n", nodeIds[i],
+                        cpus[i].length, Arrays.stream(threadNodes).filter(n -> n == node).count(), nodeWorkers[i].bytes, localPages, remotePages);
+                local += localPages;
+                remote += remotePages;
+            }
+            System.err.printf("numa: %.1f%% of the pages allocated on the node of the allocating thread%n", local + remote > 0 ? 100.0 * local / (local + remote) : 100.0);
+            return nodeWorkers;
+        }
+    }
+
+    // Touches the pages ahead of a worker, so that the page faults are taken by this thread rather than the worker.
+    private static class Prefetcher extends Thread {
+        private final MemorySegment data;
+        private final long end;
+        // Offset of the block the worker is parsing, published once per block.
+        private volatile long position;
+        private long next;
+        private int sink;
+
+        private Prefetcher(MemorySegment data, long start, long end) {
+            super("prefetcher");
+            setDaemon(true);
+            this.data = data;
+            this.position = start;
+            this.next = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            long address = data.address();
+            while (next < end) {
+                long target = Math.min(end, position + PREFETCH_DISTANCE);
+                if (next >= target) {
+                    LockSupport.parkNanos(50_000);
+                    continue;
+                }
+                for (; next < target; next += PAGE_SIZE) {
+                    sink += UNSAFE.getByte(address + next);
+                }
+            }
+        }
+    }
+
+    // A phase of the run, reported with onebrc.timings and recorded as a JFR event with onebrc.jfr. The event classes
+    // are only loaded with onebrc.jfr, as loading them initializes JFR, which adds a few hundred ms to the startup.
+    private static class Phase {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private final PhaseEvent event;
+
+        private Phase(String name) {
+            this.name = name;
+            this.event = JFR ? new PhaseEvent(name) : null;
+        }
+
+        private static Phase start(String name) {
+            return new Phase(name);
+        }
+
+        private void finish() {
+            if (event != null) {
+                event.commit();
+            }
+            if (TIMINGS) {
+                System.err.printf("timings: %s %.1f ms%n", name, (System.nanoTime() - startNanos) / 1e6);
+            }
+        }
+    }
+
+    @Name("dev.morling.onebrc.Phase")
+    @Label("Phase")
+    @Category("1BRC")
+    @StackTrace(false)
+    private static class PhaseEvent extends Event {
+        @Label("Name")
+        String name;
+
+        private PhaseEvent(String name) {
+            this.name = name;
+            begin();
+        }
+    }
+
+    // The statistics of a parse worker, committed on its thread once all of its input is parsed.
+    @Name("dev.morling.onebrc.Worker")
+    @Label("Worker")
+    @Category("1BRC")
+    @StackTrace(false)
+    private static class WorkerEvent extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Rows")
+        long rows;
+        @Label("Stations")
+        int stations;
+        @Label("Table Probes")
+        long probes;
+        @Label("Collisions")
+        long collisions;
+        @Label("Wait Time")
+        @Timespan
+        long waitTime;
+    }
+
+    public interface ProgressMBean {
+        long getParsedBytes();
+
+        long getParsedRows();
+
+        double getBytesPerSecond();
+
+        double getRowsPerSecond();
+
+        double getEtaSeconds();
+
+        double getSkew();
+    }
+
+    // Samples the progress the workers publish once per block. The workers only store their counts, so the parse loop
+    // gains no atomic operations. Rates are taken over the last second.
+    private static class Progress extends Thread implements ProgressMBean {
+        // All workers of the run, they register themselves when created.
+        private static final Queue<Worker> WORKERS = new ConcurrentLinkedQueue<>();
+
+        private final long fileSize;
+        private long lastNanos = System.nanoTime();
+        private volatile long parsedBytes;
+        private volatile long parsedRows;
+        private volatile double bytesPerSecond;
+        private volatile double rowsPerSecond;
+        private volatile double skew;
+
+        private Progress(long fileSize) {
+            super("progress");
+            setDaemon(true);
+            this.fileSize = fileSize;
+        }
+
+        private static Progress start(long fileSize) {
+            Progress progress = new Progress(fileSize);
+            if (PROGRESS_JMX) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(progress, new javax.management.ObjectName("dev.morling.onebrc:type=Progress"));
+                }
+                catch (javax.management.JMException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            progress.start();
+            return progress;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    sample();
+                }
+            }
+            catch (InterruptedException e) {
+                // parsing is done
+            }
+        }
+
+        private void sample() {
+            long bytes = 0;
+            long rows = 0;
+            long minBytes = Long.MAX_VALUE;
+            long maxBytes = 0;
+            for (Worker worker : WORKERS) {
+                long workerBytes = worker.parsedBytes;
+                bytes += workerBytes;
+                rows += worker.parsedRows;
+                minBytes = Math.min(minBytes, workerBytes);
+                maxBytes = Math.max(maxBytes, workerBytes);
+            }
+            long now = System.nanoTime();
+            double seconds = (now - lastNanos) / 1e9;
+            bytesPerSecond = (bytes - parsedBytes) / seconds;
+            rowsPerSecond = (rows - parsedRows) / seconds;
+            skew = maxBytes > 0 ? (double) (maxBytes - minBytes) / maxBytes : 0;
+            parsedBytes = bytes;
+            parsedRows = rows;
+            lastNanos = now;
+            if (!PROGRESS_JMX) {
+                System.err.printf("progress: %.1f%%, %,.1f MB/s, %,.1f M rows/s, ETA %.0f s, slowest worker %.0f%% behind the fastest%n",
+                        100.0 * bytes / Math.max(1, fileSize), bytesPerSecond / (1 << 20), rowsPerSecond / 1e6, getEtaSeconds(), 100 * skew);
+            }
+        }
+
+        @Override
+        public long getParsedBytes() {
+            return parsedBytes;
+        }
+
+        @Override
+        public long getParsedRows() {
+            return parsedRows;
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        @Override
+        public double getRowsPerSecond() {
+            return rowsPerSecond;
+        }
+
+        @Override
+        public double getEtaSeconds() {
+            return bytesPerSecond > 0 ? (fileSize - parsedBytes) / bytesPerSecond : Double.NaN;
+        }
+
+        @Override
+        public double getSkew() {
+            return skew;
+        }
+    }
+
+    public interface WindowMBean {
+        String getWindow();
+    }
+
+    // Streaming mode of onebrc.window. Rows are parsed into a Table as in batch mode, which holds the partial aggregate
+    // of each station for the current interval. Once the interval is over, every station's partial is moved into its
+    // ring of the last intervals, overwriting the one that dropped out of the window, so the window slides by one slot
+    // per station and interval rather than per row. Rings are only kept for stations seen since the start, and their
+    // slots are stamped with their interval, so a station that went quiet simply has no slots left in the window.
+    private static class Window implements WindowMBean {
+        private static final long IDLE_MILLIS = 100;
+
+        private final Table table = new Table();
+        private final StructuralIndex index = new StructuralIndex();
+        private final Map<Result, Ring> rings = new IdentityHashMap<>();
+        private final long slideNanos = SLIDE_SECONDS * 1_000_000_000;
+        private final int slots = (int) ((WINDOW_SECONDS + SLIDE_SECONDS - 1) / SLIDE_SECONDS);
+        private final long startNanos = System.nanoTime();
+        // Number of the interval since the start the table holds the partials of.
+        private long interval;
+
+        private static void stream(Path file) throws IOException, InterruptedException {
+            Window window = new Window();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(window, new javax.management.ObjectName("dev.morling.onebrc:type=Window"));
+            }
+            catch (javax.management.JMException e) {
+                throw new IllegalStateException(e);
+            }
+            Signal.handle(new Signal("HUP"), signal -> System.out.println(window.getWindow()));
+            window.read(file);
+            System.out.println(window.getWindow());
+        }
+
+        // Reads until a pipe is closed, a regular file is followed forever, as tail -f does.
+        private void read(Path file) throws IOException, InterruptedException {
+            boolean follow = Files.isRegularFile(file);
+            MemorySegment buffer = Arena.global().allocate(BLOCK_SIZE);
+            ByteBuffer bytes = buffer.asByteBuffer();
+            long address = buffer.address();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (true) {
+                    int read = channel.read(bytes);
+                    if (read <= 0) {
+                        if (read < 0 && !follow) {
+                            // The last row may have no '\n'.
+                            int rest = bytes.position();
+                            if (rest > 0) {
+                                synchronized (this) {
+                                    advance(System.nanoTime());
+                                    index.build(buffer, 0, rest);
+                                    parseLastRow(index, address, address, address + rest, table, null);
+                                }
+                            }
+                            return;
+                        }
+                        Thread.sleep(IDLE_MILLIS);
+                        continue;
+                    }
+                    int filled = bytes.position();
+                    long end;
+                    synchronized (this) {
+                        advance(System.nanoTime());
+                        index.build(buffer, 0, filled);
+                        // Rows ending before the last 16 bytes of the buffer can be read 8 bytes at a time, the bytes past
+                        // filled are left over from earlier reads and are masked out.
+                        end = parseBlock(index, address, address + BLOCK_SIZE - 2 * Long.BYTES, table, null);
+                    }
+                    int rest = (int) (address + filled - end);
+                    if (rest == BLOCK_SIZE) {
+                        throw new IllegalStateException("Row longer than " + BLOCK_SIZE + " bytes");
+                    }
+                    MemorySegment.copy(buffer, end - address, buffer, 0, rest);
+                    bytes.position(rest);
+                }
+            }
+        }
+
+        // Closes the intervals up to the one at time now.
+        private synchronized void advance(long now) {
+            long current = (now - startNanos) / slideNanos;
+            if (current == interval) {
+                return;
+            }
+            for (Result[] results : new Result[][]{ table.shortResults, table.longResults }) {
+                for (Result result : results) {
+                    if (result != null && result.count > 0) {
+                        rings.computeIfAbsent(result, r -> new Ring(slots)).put(interval, result);
+                        result.clear();
+                    }
+                }
+            }
+            interval = current;
+        }
+
+        @Override
+        public synchronized String getWindow() {
+            advance(System.nanoTime());
+            // The open interval and the closed ones before it.
+            long oldest = interval - slots + 1;
+            Map<String, Result> window = new TreeMap<>();
+            for (Result[] results : new Result[][]{ table.shortResults, table.longResults }) {
+                for (Result result : results) {
+                    if (result == null) {
+                        continue;
+                    }
+                    Result total = new Result(0, 0, 0);
+                    Ring ring = rings.get(result);
+                    if (ring != null) {
+                        ring.addTo(total, oldest);
+                    }
+                    if (result.count > 0) {
+                        total.add(result);
+                    }
+                    String name = result.name();
+                    if (total.count > 0 && (FILTER == null || FILTER.contains(name))) {
+                        window.put(name, total);
+                    }
+                }
+            }
+            return window.toString();
+        }
+    }
+
+    // The partial aggregates of a station for the last intervals of onebrc.window, as struct of arrays. Slot i holds
+    // an interval congruent to i, so the newest interval replaces the oldest.
+    private static class Ring {
+        // -1 for a slot never written.
+        final long[] intervals;
+        final int[] mins;
+        final int[] maxs;
+        final long[] sums;
+        final int[] counts;
+
+        private Ring(int slots) {
+            intervals = new long[slots];
+            Arrays.fill(intervals, -1);
+            mins = new int[slots];
+            maxs = new int[slots];
+            sums = new long[slots];
+            counts = new int[slots];
+        }
+
+        private void put(long interval, Result partial) {
+            int slot = (int) (interval % intervals.length);
+            intervals[slot] = interval;
+            mins[slot] = partial.min;
+            maxs[slot] = partial.max;
+            sums[slot] = partial.sum;
+            counts[slot] = partial.count;
+        }
+
+        // Accumulates the slots of the intervals from oldest on.
+        private void addTo(Result total, long oldest) {
+            for (int slot = 0; slot < intervals.length; slot++) {
+                if (intervals[slot] >= oldest) {
+                    total.min = Math.min(total.min, mins[slot]);
+                    total.max = Math.max(total.max, maxs[slot]);
+                    total.sum += sums[slot];
+                    total.count += counts[slot];
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (SPAWN && (args.length == 0 || !args[0].equals("--worker"))) {
+            spawnWorker();
+            return;
+        }
+        if (BUCKET_SECONDS > 0 && (QUERIES != null || RANKINGS != null || GROUPINGS != null)) {
+            throw new IllegalArgumentException("onebrc.buckets cannot be combined with onebrc.queries, onebrc.top/onebrc.bottom or onebrc.groups");
+        }
+        if (RANKINGS != null && (QUERIES != null || GROUPINGS != null || THRESHOLDS != null)) {
+            // The rankings replace the output that would carry them.
+            throw new IllegalArgumentException("onebrc.top/onebrc.bottom cannot be combined with onebrc.queries, onebrc.groups or onebrc.thresholds");
+        }
+        if (WINDOW_SECONDS > 0) {
+            if (BUCKET_SECONDS > 0 || THRESHOLDS != null || QUERIES != null || RANKINGS != null || GROUPINGS != null) {
+                throw new IllegalArgumentException("onebrc.window can only be combined with onebrc.stations and onebrc.prefix");
+            }
+            Window.stream(Path.of(FILE));
+            return;
+        }
+
+        if (PROCESSES > 1 && (THRESHOLDS != null || HISTOGRAMS || BUCKET_SECONDS > 0 || !IO.equals("mmap") || MEMORY_BUDGET > 0)) {
+            throw new IllegalArgumentException("onebrc.processes cannot be combined with onebrc.thresholds, percentiles, onebrc.buckets, onebrc.memory or another onebrc.io");
+        }
+        if (NUMA != null && (!IO.equals("mmap") || MEMORY_BUDGET > 0 || PROCESSES > 1)) {
+            throw new IllegalArgumentException("onebrc.numa cannot be combined with onebrc.memory, onebrc.processes or another onebrc.io");
+        }
+        if (WORKER_CPUS != null && (NUMA != null || PROCESSES > 1)) {
+            // The children of onebrc.processes would all pin to the same cores.
+            throw new IllegalArgumentException("onebrc.affinity cannot be combined with onebrc.numa or onebrc.processes");
+        }
+        if (WORKER_CPUS != null && TIMINGS) {
+            System.err.println("timings: affinity " + AFFINITY + ", workers on cpus " + Arrays.toString(WORKER_CPUS));
+        }
+        // The shard of a child of onebrc.processes, the arguments end with --shard start end.
+        int shard = Arrays.asList(args).indexOf("--shard");
+
+        long startTime = System.nanoTime();
+        long[] faultsBefore = FAULTS ? pageFaults() : null;
+        Path file = Path.of(FILE);
+        long fileSize = Files.size(file);
+        if (ALLOCATIONS && (shard >= 0 || PROCESSES <= 1)) {
+            rehearseAllocations(file, fileSize);
+        }
+
+        Progress progress = PROGRESS ? Progress.start(fileSize) : null;
+        Worker[] workers = shard >= 0 ? processMapped(file, Long.parseLong(args[shard + 1]), Long.parseLong(args[shard + 2]))
+                : PROCESSES > 1 ? processShards(file, fileSize) : switch (IO) {
+            case "mmap" -> MEMORY_BUDGET > 0 ? processWindows(file, fileSize) : processMapped(file, 0, fileSize);
+            case "read" -> processRead(file, fileSize, false);
+            case "direct" -> processRead(file, fileSize, true);
+            case "async" -> processAsync(file, fileSize);
+            default -> throw new IllegalArgumentException("Unknown I/O mode: " + IO);
+        };
+        if (progress != null) {
+            progress.interrupt();
+        }
+
+        if (ALLOCATIONS && NUMA == null) {
+            checkAllocations(workers);
+        }
+        if (TIMINGS) {
+            for (int i = 0; i < workers.length; i++) {
+                Worker worker = workers[i];
+                Table table = worker.table;
+                long rows = table.rows();
+                System.err.printf("timings: worker %d %.1f ms, %,d bytes, %,d rows, %,d stations, %,d probes, %,d collisions, %.1f ms waiting%n", i,
+                        worker.elapsedNanos / 1e6, worker.bytes, rows, table.size, rows + table.collisions, table.collisions, worker.waitNanos / 1e6);
+            }
+        }
+
+        if (HASH_STATS) {
+            printHashStats("short", workers, table -> table.shortResults);
+            printHashStats("long", workers, table -> table.longResults);
+        }
+
+        if (shard >= 0) {
+            writePartials(workers);
+        }
+        else if (BUCKET_SECONDS > 0) {
+            printTimedResults(workers);
+        }
+        else if (RANKINGS != null) {
+            printRankings(workers);
+        }
+        else {
+            printResults(workers);
+        }
+        if (SPAWN) {
+            // Signals the parent that the output is complete.
+            System.out.close();
+        }
+
+        if (FAULTS) {
+            long[] faultsAfter = pageFaults();
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.err.printf("page faults: %,d minor, %,d major, %.1f MB/s%n", faultsAfter[0] - faultsBefore[0], faultsAfter[1] - faultsBefore[1],
+                    fileSize / seconds / (1 << 20));
+        }
+    }
+
+    private static void printResults(Worker[] workers) {
+        // Accumulate results sequentially.
+        Phase merge = Phase.start("merge");
+        Map<String, Result> result = new HashMap<>();
+        for (Worker worker : workers) {
+            merge(result, worker.table.shortResults);
+            merge(result, worker.table.longResults);
+        }
+        List<Map<String, Result>> groups = new ArrayList<>();
+        if (GROUPINGS != null) {
+            for (int i = 0; i < GROUPINGS.size(); i++) {
+                groups.add(new TreeMap<>());
+            }
+            result.forEach((name, r) -> {
+                String group = null;
+                for (int i = 0; i < GROUPINGS.size(); i++) {
+                    group = GROUPINGS.get(i).group(name, group);
+                    groups.get(i).computeIfAbsent(group, g -> new Result(0, 0, 0)).add(r);
+                }
+            });
+        }
+        merge.finish();
+
+        // Final output.
+        Phase output = Phase.start("output");
+        if (QUERIES != null) {
+            for (Query query : QUERIES) {
+                Map<String, String> report = new TreeMap<>();
+                result.forEach((name, r) -> {
+                    if (query.stations == null || query.stations.contains(name)) {
+                        report.put(name, query.format(r));
+                    }
+                });
+                System.out.println(query.spec + ": " + report);
+            }
+        }
+        else {
+            System.out.println(new TreeMap<>(result));
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            System.out.println("groups " + GROUPINGS.get(i).spec + ": " + groups.get(i));
+        }
+        output.finish();
+    }
+
+    // Merges the tables of the workers into a table of the same kind, so that stations are matched by their name bytes
+    // and no name is turned into a String, then reports the winners of every ranking.
+    private static void printRankings(Worker[] workers) {
+        Phase merge = Phase.start("merge");
+        Table merged = new Table();
+        for (Worker worker : workers) {
+            merged.addAll(worker.table);
+        }
+        merge.finish();
+
+        Phase output = Phase.start("output");
+        for (Ranking ranking : RANKINGS) {
+            List<Result> winners = ranking.select(merged);
+            StringBuilder report = new StringBuilder(ranking.label).append(": [");
+            for (Result winner : winners) {
+                report.append(report.charAt(report.length() - 1) == '[' ? "" : ", ").append(winner.name()).append('=').append(winner.stats());
+                if (ranking.byCount) {
+                    report.append(" (count: ").append(winner.count).append(')');
+                }
+            }
+            System.out.println(report.append(']'));
+        }
+        output.finish();
+    }
+
+    // Merges the tables of onebrc.buckets by name bytes and bucket as printRankings does, so that a name is turned into
+    // a String once per station and bucket rather than once per worker, and prints the buckets of every station in
+    // time order.
+    private static void printTimedResults(Worker[] workers) {
+        Phase merge = Phase.start("merge");
+        TimedTable merged = new TimedTable();
+        for (Worker worker : workers) {
+            merged.addAll(worker.timedTable);
+        }
+        Map<String, Map<Instant, Result>> result = new TreeMap<>();
+        for (int i = 0; i < merged.results.length; i++) {
+            Result r = merged.results[i];
+            if (r == null) {
+                continue;
+            }
+            String name = r.name();
+            if (FILTER == null || FILTER.contains(name)) {
+                result.computeIfAbsent(name, n -> new TreeMap<>()).put(Instant.ofEpochSecond(merged.keys[3 * i + 2] * BUCKET_SECONDS), r);
+            }
+        }
+        merge.finish();
+
+        Phase output = Phase.start("output");
+        System.out.println(result);
+        output.finish();
+    }
+
+    // Starts this class in a child JVM with the same command line and copies its output until the child closes it.
+    private static void spawnWorker() throws IOException, InterruptedException {
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        List<String> command = new ArrayList<>();
+        info.command().ifPresent(command::add);
+        info.arguments().ifPresent(arguments -> command.addAll(Arrays.asList(arguments)));
+        command.add("--worker");
+        Process worker = new ProcessBuilder(command).inheritIO().redirectOutput(ProcessBuilder.Redirect.PIPE).start();
+        if (worker.getInputStream().transferTo(System.out) == 0) {
+            // No result, report the failure of the child instead.
+            System.exit(worker.waitFor());
+        }
+        System.out.flush();
+    }
+
+    // Coordinator of onebrc.processes: starts a child JVM with the same command line per shard, which parses its shard
+    // with its share of the cores and writes its table to its stdout, and merges the tables into the one of a single
+    // worker. The children are read in order, a child done early waits with its table in the pipe.
+    private static Worker[] processShards(Path file, long fileSize) throws IOException, InterruptedException {
+        Phase segments = Phase.start("segments");
+        long[] chunks;
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ); Arena arena = Arena.ofConfined()) {
+            chunks = getSegments(fileChannel.map(MapMode.READ_ONLY, 0, fileSize, arena), PROCESSES);
+        }
+        segments.finish();
+
+        Phase parse = Phase.start("parse");
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        Process[] children = new Process[PROCESSES];
+        for (int i = 0; i < PROCESSES; i++) {
+            List<String> command = new ArrayList<>();
+            info.command().ifPresent(command::add);
+            // Overrides one of JDK_JAVA_OPTIONS, which go before the command line, one on the command line is dropped.
+            command.add("-XX:ActiveProcessorCount=" + Math.max(1, THREADS / PROCESSES));
+            info.arguments().ifPresent(arguments -> Arrays.stream(arguments)
+                    .filter(argument -> !argument.startsWith("-XX:ActiveProcessorCount="))
+                    .forEach(command::add));
+            command.addAll(List.of("--shard", Long.toString(chunks[i]), Long.toString(chunks[i + 1])));
+            children[i] = new ProcessBuilder(command).inheritIO().redirectOutput(ProcessBuilder.Redirect.PIPE).start();
+        }
+        Worker worker = new Worker();
+        for (int i = 0; i < PROCESSES; i++) {
+            readPartials(children[i].getInputStream(), worker.table);
+            int exitCode = children[i].waitFor();
+            if (exitCode != 0) {
+                throw new IllegalStateException("Shard " + i + " failed with exit code " + exitCode);
+            }
+        }
+        parse.finish();
+        return new Worker[]{ worker };
+    }
+
+    // The tables of a shard of onebrc.processes, per station the length and bytes of its name, followed by min, max,
+    // sum and count.
+    private static void writePartials(Worker[] workers) throws IOException {
+        Phase output = Phase.start("output");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16))) {
+            for (Worker worker : workers) {
+                for (Result[] results : new Result[][]{ worker.table.shortResults, worker.table.longResults }) {
+                    for (Result r : results) {
+                        if (r == null) {
+                            continue;
+                        }
+                        byte[] name = new byte[r.nameLength];
+                        UNSAFE.copyMemory(null, r.nameAddress, name, Unsafe.ARRAY_BYTE_BASE_OFFSET, r.nameLength);
+                        out.writeShort(name.length);
+                        out.write(name);
+                        // Values range from -999 to 999 tenths.
+                        out.writeShort(r.min);
+                        out.writeShort(r.max);
+                        out.writeLong(r.sum);
+                        out.writeInt(r.count);
+                    }
+                }
+            }
+        }
+        output.finish();
+    }
+
+    // Merges the tables written by writePartials into the given one.
+    private static void readPartials(InputStream stream, Table table) throws IOException {
+        MemorySegment name = Arena.ofAuto().allocate(1 << 16);
+        byte[] bytes = new byte[1 << 16];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16))) {
+            while (true) {
+                int nameLength;
+                try {
+                    nameLength = in.readUnsignedShort();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                in.readFully(bytes, 0, nameLength);
+                MemorySegment.copy(bytes, 0, name, ValueLayout.JAVA_BYTE, 0, nameLength);
+                long word0 = firstWord(name.get(ValueLayout.JAVA_LONG_UNALIGNED, 0), nameLength);
+                long word1 = secondWord(name.get(ValueLayout.JAVA_LONG_UNALIGNED, Long.BYTES), nameLength);
+                Result r = table.get(word0, word1, name.address(), nameLength, hash(word0, word1, nameLength));
+                r.min = Math.min(r.min, in.readShort());
+                r.max = Math.max(r.max, in.readShort());
+                r.sum += in.readLong();
+                r.count += in.readInt();
+            }
+        }
+    }
+
+    // Derives the probe statistics of one tier of the tables from where its stations ended up. Without deletions, every
+    // lookup of a station probes the same slots, from its home slot up to its own, so this costs nothing while parsing.
+    // The tables have a fixed size and are never resized.
+    private static void printHashStats(String tier, Worker[] workers, Function<Table, Result[]> tables) {
+        long[] histogram = new long[17];
+        long lookups = 0;
+        int maxProbe = 0;
+        int maxStations = 0;
+        Map<String, Long> extraProbes = new HashMap<>();
+        // Every worker holds its own copy of a station, so the distinct names are collected across the workers.
+        Map<Integer, Set<String>> namesByHash = new HashMap<>();
+        for (Worker worker : workers) {
+            Result[] results = tables.apply(worker.table);
+            int stations = 0;
+            for (int slot = 0; slot < results.length; slot++) {
+                Result result = results[slot];
+                if (result == null) {
+                    continue;
+                }
+                stations++;
+                int probe = ((slot - result.hash) & (TABLE_SIZE - 1)) + 1;
+                histogram[Math.min(probe, histogram.length - 1)] += result.count;
+                lookups += result.count;
+                maxProbe = Math.max(maxProbe, probe);
+                String name = result.name();
+                if (probe > 1) {
+                    extraProbes.merge(name, (long) (probe - 1) * result.count, Long::sum);
+                }
+                namesByHash.computeIfAbsent(result.hash, hash -> new HashSet<>()).add(name);
+            }
+            maxStations = Math.max(maxStations, stations);
+        }
+        if (lookups == 0) {
+            return;
+        }
+        long hashCollisions = 0;
+        for (Set<String> names : namesByHash.values()) {
+            hashCollisions += (long) names.size() * (names.size() - 1) / 2;
+        }
+
+        System.err.printf("hash stats: %s names: %,d lookups, load factor %.3f, max probe %d, 0 resizes (fixed size), %,d pairs of names with the same hash%n",
+                tier, lookups, (double) maxStations / TABLE_SIZE, maxProbe, hashCollisions);
+        StringBuilder probes = new StringBuilder();
+        for (int probe = 1; probe < histogram.length; probe++) {
+            if (histogram[probe] > 0) {
+                probes.append(String.format(" %d%s: %.3f%%", probe, probe == histogram.length - 1 ? "+" : "", 100.0 * histogram[probe] / lookups));
+            }
+        }
+        System.err.println("hash stats: " + tier + " probe lengths:" + probes);
+        extraProbes.entrySet().stream()
+                .sorted(Map.Entry.<String, Long> comparingByValue().reversed())
+                .limit(10)
+                .forEach(e -> System.err.printf("hash stats: %s hotspot %s: %,d extra probes%n", tier, e.getKey(), e.getValue()));
+    }
+
+    // The parse phase must allocate per station and never per row, so that it runs with Epsilon GC on any input.
+    // Parses up to the first REHEARSAL_BYTES of the file with a scratch worker until a pass allocates nothing, and fails if
+    // the last pass allocated anyway.
+    private static void rehearseAllocations(Path file, long fileSize) throws IOException {
+        long size = Math.min(fileSize, REHEARSAL_BYTES + PIECE_OVERLAP);
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+                var arena = Arena.ofConfined()) {
+            MemorySegment data = fileChannel.map(MapMode.READ_ONLY, 0, size, arena);
+            Worker worker = new Worker();
+            long allocated = -1;
+            int passes = 0;
+            long deadline = System.nanoTime() + REHEARSAL_NANOS;
+            while (allocated != 0 && System.nanoTime() < deadline && passes * size < REHEARSAL_LIMIT) {
+                long allocatedBefore = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+                processPiece(worker, data, 0, 0, REHEARSAL_BYTES, fileSize);
+                allocated = THREAD_BEAN.getCurrentThreadAllocatedBytes() - allocatedBefore;
+                passes++;
+            }
+            System.err.printf("allocations: rehearsal allocated %,d bytes in the last of %,d passes over %,d bytes%n", allocated, passes, size);
+            if (allocated > 0) {
+                throw new IllegalStateException("Rehearsal allocated " + allocated + " bytes in its last pass, over stations it had all seen before");
+            }
+        }
+    }
+
+    private static void checkAllocations(Worker[] workers) {
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+            int checked = worker.blocks - WARMUP_BLOCKS;
+            if (checked <= 0) {
+                System.err.printf("allocations: worker %d allocated %,d bytes in %d blocks, not checked within the first %d blocks%n", i, worker.allocatedBytes,
+                        worker.blocks, WARMUP_BLOCKS);
+                continue;
+            }
+            System.err.printf("allocations: worker %d allocated %,d bytes, %,d of %,d blocks after warm-up over the allowance of %,d bytes per block and %,d per new station%n",
+                    i, worker.allocatedBytes, worker.overBudgetBlocks, checked, ALLOCATION_PER_BLOCK, ALLOCATION_PER_STATION);
+            if (worker.overBudgetBlocks > checked / 2) {
+                throw new IllegalStateException("Worker " + i + " allocated more than its allowance in " + worker.overBudgetBlocks + " of " + checked
+                        + " blocks after warm-up");
+            }
+        }
+    }
+
+    // Minor and major page faults of this process so far, from /proc/self/stat.
+    private static long[] pageFaults() throws IOException {
+        String stat = Files.readString(Path.of("/proc/self/stat"));
+        // Skip the command name, it may contain spaces.
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return new long[]{ Long.parseLong(fields[7]), Long.parseLong(fields[9]) };
+    }
+
+    private static void merge(Map<String, Result> result, Result[] results) {
+        for (Result r : results) {
+            if (r != null) {
+                String name = r.name();
+                if (FILTER != null && !FILTER.contains(name)) {
+                    continue;
+                }
+                Result current = result.putIfAbsent(name, r);
+                if (current != null) {
+                    current.add(r);
+                }
+            }
+        }
+    }
+
+    // Maps the rows in [start, end) of the file, the whole file unless this is a shard of onebrc.processes, and
+    // processes one segment per thread.
+    private static Worker[] processMapped(Path file, long start, long end) throws IOException, InterruptedException {
+        Phase map = Phase.start("map");
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment data = fileChannel.map(MapMode.READ_ONLY, start, end - start, Arena.global());
+            for (String advice : MADVISE.split(",")) {
+                switch (advice.trim()) {
+                    case "sequential" -> Native.madvise(data, 0, data.byteSize(), Native.MADV_SEQUENTIAL);
+                    case "willneed" -> Native.madvise(data, 0, data.byteSize(), Native.MADV_WILLNEED);
+                    case "hugepage" -> Native.madvise(data, 0, data.byteSize(), Native.MADV_HUGEPAGE);
+                    case "populate", "" -> {
+                        // populate is applied per segment by the workers
+                    }
+                    default -> throw new IllegalArgumentException("Unknown madvise advice: " + advice);
+                }
+            }
+
+            map.finish();
+
+            // Calculate input segments.
+            Phase segments = Phase.start("segments");
+            long[] chunks = getSegments(data, THREADS);
+            segments.finish();
+
+            // Parallel processing of segments.
+            Phase parse = Phase.start("parse");
+            Worker[] workers = new Worker[THREADS];
+            Thread[] threads = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                int index = i;
+                threads[i] = new Thread(() -> {
+                    pinWorker(index);
+                    workers[index] = processChunk(data, chunks[index], chunks[index + 1]);
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            parse.finish();
+            return NUMA != null ? NUMA.merge(workers) : workers;
+        }
+    }
+
+    // Maps the file one window per thread at a time. Every window is mapped in its own confined arena and unmapped
+    // as soon as it is parsed, so the mapped memory stays within the budget regardless of the file size.
+    private static Worker[] processWindows(Path file, long fileSize) throws IOException, InterruptedException {
+        int windows = (int) ((fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        AtomicInteger nextWindow = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Phase parse = Phase.start("parse");
+            Worker[] workers = new Worker[THREADS];
+            Thread[] threads = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                int index = i;
+                Worker worker = workers[i] = new Worker();
+                threads[i] = new Thread(() -> {
+                    pinWorker(index);
+                    worker.begin();
+                    for (int window; (window = nextWindow.getAndIncrement()) < windows;) {
+                        long position = Math.max(0, window * WINDOW_SIZE - 1);
+                        long end = Math.min(fileSize, (window + 1) * WINDOW_SIZE + PIECE_OVERLAP);
+                        try (var arena = Arena.ofConfined()) {
+                            MemorySegment data = fileChannel.map(MapMode.READ_ONLY, position, end - position, arena);
+                            processPiece(worker, data, position, window, WINDOW_SIZE, fileSize);
+                        }
+                        catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                            nextWindow.set(windows);
+                        }
+                    }
+                    worker.end();
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            parse.finish();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            return workers;
+        }
+    }
+
+    private static Worker processChunk(MemorySegment data, long chunkStart, long chunkEnd) {
+        Worker worker = new Worker();
+        worker.begin();
+        if (MADVISE.contains("populate")) {
+            Native.madvise(data, chunkStart, chunkEnd - chunkStart, Native.MADV_POPULATE_READ);
+        }
+        if (PREFETCH_DISTANCE > 0) {
+            worker.prefetcher = new Prefetcher(data, chunkStart, chunkEnd);
+            worker.prefetcher.start();
+        }
+        worker.process(data, chunkStart, chunkEnd);
+        worker.end();
+        return worker;
+    }
+
+    // A buffer of the read/direct/async backends, holding the bytes of one piece of the file plus some overlap.
+    private static class Buffer {
+        final MemorySegment segment;
+        final ByteBuffer byteBuffer;
+        int piece;
+        // File offset of the first byte in the buffer.
+        long position;
+        int length;
+
+        private Buffer(MemorySegment segment) {
+            this.segment = segment;
+            this.byteBuffer = segment.asByteBuffer();
+        }
+    }
+
+    // Marks the end of the input for the parse workers.
+    private static final Buffer END = new Buffer(MemorySegment.ofArray(new byte[0]));
+
+    // Reads the file with positional reads into a fixed pool of page aligned buffers. Reader threads claim the
+    // pieces of the file in order and hand filled buffers to the parse workers, which return them once parsed.
+    // With direct I/O, reads bypass the page cache and have to start and end at a multiple of the block size of
+    // the file system, the rows of the piece are found within the widened range the same way.
+    private static Worker[] processRead(Path file, long fileSize, boolean direct) throws IOException, InterruptedException {
+        int pieces = (int) ((fileSize + PIECE_SIZE - 1) / PIECE_SIZE);
+        int alignment = direct ? (int) Files.getFileStore(file).getBlockSize() : 1;
+        BlockingQueue<Buffer> free = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        BlockingQueue<Buffer> filled = new ArrayBlockingQueue<>(QUEUE_DEPTH + THREADS);
+        AtomicInteger nextPiece = new AtomicInteger();
+        AtomicInteger activeReaders = new AtomicInteger(READERS);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        try (var fileChannel = direct ? FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT) : FileChannel.open(file, StandardOpenOption.READ);
+                var arena = Arena.ofShared()) {
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                free.add(new Buffer(arena.allocate(alignUp(1 + PIECE_SIZE + PIECE_OVERLAP, alignment) + alignment, Math.max(PAGE_SIZE, alignment))));
+            }
+
+            Thread[] readers = new Thread[READERS];
+            for (int i = 0; i < READERS; i++) {
+                readers[i] = new Thread(() -> {
+                    try {
+                        for (int piece; (piece = nextPiece.getAndIncrement()) < pieces;) {
+                            Buffer buffer = free.take();
+                            buffer.piece = piece;
+                            // Start one byte early, so that a row starting right at the piece boundary is recognised.
+                            buffer.position = Math.max(0, (long) piece * PIECE_SIZE - 1) / alignment * alignment;
+                            long end = Math.min(fileSize, (long) (piece + 1) * PIECE_SIZE + PIECE_OVERLAP);
+                            // The tail block is read in full as well, the read just comes back short.
+                            buffer.length = read(fileChannel, buffer.byteBuffer, buffer.position, alignUp(end - buffer.position, alignment), fileSize);
+                            filled.put(buffer);
+                        }
+                    }
+                    catch (IOException | InterruptedException e) {
+                        failure.compareAndSet(null, e);
+                        nextPiece.set(pieces);
+                    }
+                    finally {
+                        if (activeReaders.decrementAndGet() == 0) {
+                            for (int j = 0; j < THREADS; j++) {
+                                filled.add(END);
+                            }
+                        }
+                    }
+                }, "reader");
+                readers[i].start();
+            }
+
+            Worker[] workers = processBuffers(filled, fileSize, free::add, failure, () -> {
+                // The buffer of the failed worker is never returned, readers waiting for one have to give up.
+                nextPiece.set(pieces);
+                for (Thread reader : readers) {
+                    reader.interrupt();
+                }
+            });
+            for (Thread thread : readers) {
+                thread.join();
+            }
+            if (failure.get() instanceof RuntimeException e) {
+                throw e;
+            }
+            if (failure.get() != null) {
+                throw new IOException("Reading " + file + " failed", failure.get());
+            }
+            return workers;
+        }
+    }
+
+    // Reads the file through an AsynchronousFileChannel. Every buffer of a fixed ring cycles through being read,
+    // waiting in the queue and being parsed, only then it picks up the next piece of the file. At most IN_FLIGHT reads
+    // are outstanding at a time, buffers beyond that wait for a read to complete. Reads are issued by the completion
+    // handler and the parse workers, so no thread blocks on I/O and parsing overlaps with the reads.
+    private static Worker[] processAsync(Path file, long fileSize) throws IOException, InterruptedException {
+        int pieces = (int) ((fileSize + PIECE_SIZE - 1) / PIECE_SIZE);
+        BlockingQueue<Buffer> filled = new ArrayBlockingQueue<>(QUEUE_DEPTH + THREADS);
+        AtomicInteger piecesLeft = new AtomicInteger(pieces);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        try (var fileChannel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+                var arena = Arena.ofShared()) {
+            AsyncReader reader = new AsyncReader(fileChannel, fileSize, pieces, filled);
+            if (pieces == 0) {
+                reader.end();
+            }
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                reader.start(new Buffer(arena.allocate(1 + PIECE_SIZE + PIECE_OVERLAP, PAGE_SIZE)));
+            }
+
+            Worker[] workers = processBuffers(filled, fileSize, buffer -> {
+                if (piecesLeft.decrementAndGet() == 0) {
+                    reader.end();
+                }
+                else {
+                    reader.start(buffer);
+                }
+            }, failure, reader::stop);
+            if (failure.get() != null) {
+                // The reads still outstanding target the buffers of the arena, which cannot be closed before them.
+                reader.inFlight.acquireUninterruptibly(IN_FLIGHT);
+                throw (RuntimeException) failure.get();
+            }
+            if (reader.failure != null) {
+                throw new IOException("Reading " + file + " failed", reader.failure);
+            }
+            return workers;
+        }
+    }
+
+    private static class AsyncReader implements CompletionHandler<Integer, Buffer> {
+        private final AsynchronousFileChannel channel;
+        private final long fileSize;
+        private final int pieces;
+        private final BlockingQueue<Buffer> filled;
+        private final AtomicInteger nextPiece = new AtomicInteger();
+        private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+        private final Queue<Buffer> waiting = new ConcurrentLinkedQueue<>();
+        private volatile Throwable failure;
+
+        private AsyncReader(AsynchronousFileChannel channel, long fileSize, int pieces, BlockingQueue<Buffer> filled) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.pieces = pieces;
+            this.filled = filled;
+        }
+
+        // Starts reading the next piece into the buffer, or parks it until one of the outstanding reads completes.
+        private void start(Buffer buffer) {
+            if (!inFlight.tryAcquire()) {
+                waiting.add(buffer);
+                // A read may have completed in the meantime without seeing the parked buffer.
+                if (!inFlight.tryAcquire()) {
+                    return;
+                }
+                buffer = waiting.poll();
+                if (buffer == null) {
+                    inFlight.release();
+                    return;
+                }
+            }
+            int piece = nextPiece.getAndIncrement();
+            if (piece >= pieces) {
+                inFlight.release();
+                return;
+            }
+            buffer.piece = piece;
+            // Start one byte early, so that a row starting right at the piece boundary is recognised.
+            buffer.position = Math.max(0, (long) piece * PIECE_SIZE - 1);
+            long end = Math.min(fileSize, (long) (piece + 1) * PIECE_SIZE + PIECE_OVERLAP);
+            buffer.byteBuffer.clear().limit((int) (end - buffer.position));
+            channel.read(buffer.byteBuffer, buffer.position, buffer, this);
+        }
+
+        // Issues no further reads and releases the parse workers, as a parse worker failed.
+        private void stop() {
+            nextPiece.set(pieces);
+            end();
+        }
+
+        // Releases the parse workers once all pieces are parsed, or reading failed.
+        private void end() {
+            for (int i = 0; i < THREADS; i++) {
+                filled.offer(END);
+            }
+        }
+
+        @Override
+        public void completed(Integer read, Buffer buffer) {
+            ByteBuffer byteBuffer = buffer.byteBuffer;
+            if (read >= 0 && byteBuffer.hasRemaining()) {
+                channel.read(byteBuffer, buffer.position + byteBuffer.position(), buffer, this);
+                return;
+            }
+            buffer.length = byteBuffer.position();
+            inFlight.release();
+            filled.add(buffer);
+            Buffer next = waiting.poll();
+            if (next != null) {
+                start(next);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Buffer buffer) {
+            failure = e;
+            inFlight.release();
+            end();
+        }
+    }
+
+    // Parses the buffers from the queue with one worker per core until the end marker, each buffer is handed to
+    // recycle once parsed. The first worker to fail records its exception in failure and calls stop, which has to
+    // release the other workers.
+    private static Worker[] processBuffers(BlockingQueue<Buffer> filled, long fileSize, Consumer<Buffer> recycle, AtomicReference<Exception> failure,
+                                           Runnable stop)
+            throws InterruptedException {
+        Phase parse = Phase.start("parse");
+        Worker[] workers = new Worker[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            int index = i;
+            Worker worker = workers[i] = new Worker();
+            threads[i] = new Thread(() -> {
+                pinWorker(index);
+                worker.begin();
+                try {
+                    while (true) {
+                        long waitStart = System.nanoTime();
+                        Buffer buffer = filled.take();
+                        worker.waitNanos += System.nanoTime() - waitStart;
+                        if (buffer == END) {
+                            break;
+                        }
+                        processPiece(worker, buffer.segment.asSlice(0, buffer.length), buffer.position, buffer.piece, PIECE_SIZE, fileSize);
+                        recycle.accept(buffer);
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                catch (RuntimeException e) {
+                    if (failure.compareAndSet(null, e)) {
+                        stop.run();
+                    }
+                }
+                worker.end();
+            }, "worker");
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        parse.finish();
+        return workers;
+    }
+
+    // Processes the rows starting in the given piece of the file. The data starts at the given file position, no later
+    // than one byte before the piece, and extends past the end of the last row of the piece.
+    private static void processPiece(Worker worker, MemorySegment data, long position, int piece, long pieceSize, long fileSize) {
+        long pieceEnd = (piece + 1) * pieceSize;
+        long start = piece == 0 ? 0 : nextRow(data, piece * pieceSize - 1 - position);
+        long end = pieceEnd >= fileSize ? data.byteSize() : nextRow(data, pieceEnd - 1 - position);
+        worker.process(data, start, end);
+    }
+
+    // Reads until the buffer holds length bytes or the file ends, returns the number of bytes read.
+    private static int read(FileChannel channel, ByteBuffer buffer, long position, int length, long fileSize) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining() && position + buffer.position() < fileSize) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static int alignUp(long value, int alignment) {
+        return (int) ((value + alignment - 1) / alignment * alignment);
+    }
+
+    // Offset of the first row starting after the given offset.
+    private static long nextRow(MemorySegment data, long offset) {
+        while (offset < data.byteSize() && data.get(ValueLayout.JAVA_BYTE, offset++) != '\n') {
+            // nop
+        }
+        return offset;
+    }
+
+    // The parse state of a single thread.
+    private static class Worker {
+        final Table table = new Table();
+        final TimedTable timedTable = BUCKET_SECONDS > 0 ? new TimedTable() : null;
+        final StructuralIndex index = new StructuralIndex();
+        final Batch batch = BATCH_SIZE > 0 ? new Batch(BATCH_SIZE) : null;
+        Prefetcher prefetcher;
+        // Bytes allocated on the heap by process so far and the blocks parsed, of which those past warm-up over the
+        // allowance left, only tracked with onebrc.allocations.
+        long allocatedBytes;
+        int blocks;
+        int overBudgetBlocks;
+        long allowance;
+        // The allocated bytes and stations as of the end of the last block.
+        long blockAllocatedBytes;
+        int blockStations;
+        long bytes;
+        // Time spent waiting for input from the readers.
+        long waitNanos;
+        long elapsedNanos;
+        // Published once per block for the progress reporter, only written by the worker thread.
+        volatile long parsedBytes;
+        volatile long parsedRows;
+        private final WorkerEvent event = JFR ? new WorkerEvent() : null;
+
+        private Worker() {
+            if (PROGRESS) {
+                Progress.WORKERS.add(this);
+            }
+        }
+
+        // Called on the worker thread before its first input.
+        private void begin() {
+            elapsedNanos = System.nanoTime();
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        // Called on the worker thread after its last input.
+        private void end() {
+            elapsedNanos = System.nanoTime() - elapsedNanos;
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.bytes = bytes;
+                    event.rows = table.rows();
+                    event.stations = table.size;
+                    event.probes = event.rows + table.collisions;
+                    event.collisions = table.collisions;
+                    event.waitTime = waitNanos;
+                    event.commit();
+                }
+            }
+        }
+
+        // Processes the rows in [start, end) of data, both ends are at the start of a row.
+        private void process(MemorySegment data, long start, long end) {
+            long allocatedBefore = 0;
+            if (ALLOCATIONS) {
+                allocatedBefore = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+                blockAllocatedBytes = allocatedBefore;
+                blockStations = stations();
+            }
+            long baseAddress = data.address();
+            // Rows ending before this address can be read 8 bytes at a time without over-fetching past the data.
+            long safeAddress = baseAddress + data.byteSize() - 2 * Long.BYTES;
+
+            long offset = start;
+            while (offset < end) {
+                if (prefetcher != null) {
+                    prefetcher.position = offset;
+                }
+                int length = (int) Math.min(BLOCK_SIZE, end - offset);
+                index.build(data, offset, length);
+                long next;
+                if (timedTable != null) {
+                    next = parseTimedBlock(index, baseAddress + offset, safeAddress, baseAddress, timedTable) - baseAddress;
+                }
+                else {
+                    next = parseBlock(index, baseAddress + offset, safeAddress, table, batch) - baseAddress;
+                }
+                if (next == offset) {
+                    // Not a single complete row in the block.
+                    if (offset + length < end) {
+                        throw new IllegalStateException("Row longer than " + BLOCK_SIZE + " bytes at offset " + offset);
+                    }
+                    parseLastRow(index, baseAddress, baseAddress + offset, baseAddress + end, table, timedTable);
+                    next = end;
+                }
+                offset = next;
+                if (ALLOCATIONS) {
+                    countAllocation();
+                }
+                if (PROGRESS) {
+                    parsedBytes = bytes + offset - start;
+                    // Every complete row of the block has been parsed, a trailing row without its '\n' is left over.
+                    parsedRows += index.count / (timedTable != null ? 3 : 2);
+                }
+            }
+            bytes += end - start;
+            if (ALLOCATIONS) {
+                allocatedBytes += THREAD_BEAN.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+        }
+
+        // Charges the allocation of the block just parsed to the allowance, which starts over when overdrawn.
+        private void countAllocation() {
+            long allocated = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+            int stations = stations();
+            allowance += ALLOCATION_PER_BLOCK + (stations - blockStations) * ALLOCATION_PER_STATION;
+            if (++blocks > WARMUP_BLOCKS) {
+                allowance -= allocated - blockAllocatedBytes;
+                if (allowance < 0) {
+                    overBudgetBlocks++;
+                    allowance = 0;
+                }
+            }
+            blockAllocatedBytes = allocated;
+            blockStations = stations;
+        }
+
+        // Every station and bucket of onebrc.buckets counts as a station.
+        private int stations() {
+            return timedTable != null ? timedTable.size : table.size;
+        }
+
+    }
+
+    // The last row of the data if it has no '\n', in [lineAddress, endAddress), into timedTable with onebrc.buckets
+    // and into table otherwise. The index of the block holds just the separators of this row. Rows before lowAddress
+    // cannot be read.
+    private static void parseLastRow(StructuralIndex index, long lowAddress, long lineAddress, long endAddress, Table table, TimedTable timedTable) {
+        if (index.count != (timedTable != null ? 2 : 1)) {
+            throw new IllegalStateException("Malformed last row at address " + lineAddress);
+        }
+        long semicolonAddress = lineAddress + index.positions[0];
+        int nameLength = (int) (semicolonAddress - lineAddress);
+        long word0 = readTail(lineAddress, Math.min(nameLength, Long.BYTES));
+        long word1 = readTail(lineAddress + Long.BYTES, Math.clamp(nameLength - Long.BYTES, 0, Long.BYTES));
+        int hash = hash(word0, word1, nameLength);
+        if (FILTER != null && !FILTER.mightContain(word0, word1, hash)) {
+            return;
+        }
+        if (timedTable != null) {
+            long timestampEnd = lineAddress + index.positions[1];
+            long bucket = parseTimestamp(semicolonAddress + 1, timestampEnd, lowAddress) / BUCKET_SECONDS;
+            timedTable.get(word0, word1, lineAddress, nameLength, hash, bucket).add(parseNumberTail(timestampEnd + 1, endAddress));
+        }
+        else {
+            table.get(word0, word1, lineAddress, nameLength, hash).add(parseNumberTail(semicolonAddress + 1, endAddress));
+        }
+    }
+
+    // Stage two: every row contributes exactly one ';' followed by one '\n', a trailing ';' of a row cut off at the
+    // end of the block is left for the next block. Returns the address of the first row not processed.
+    private static long parseBlock(StructuralIndex index, long blockAddress, long safeAddress, Table table, Batch batch) {
+        int[] positions = index.positions;
+        int row = 0;
+        if (batch != null) {
+            row = parseBatches(index, blockAddress, safeAddress, table, batch);
+        }
+        else if (STREAMS > 1) {
+            row = parseStreams(index, blockAddress, safeAddress, table);
+        }
+        long lineAddress = row > 0 ? blockAddress + positions[2 * row - 1] + 1 : blockAddress;
+        for (int i = 2 * row; i < index.count - 1; i += 2) {
+            long semicolonAddress = blockAddress + positions[i];
+            long newlineAddress = blockAddress + positions[i + 1];
+            int nameLength = (int) (semicolonAddress - lineAddress);
+
+            boolean safe = newlineAddress < safeAddress;
+            long word0;
+            long word1;
+            if (safe) {
+                word0 = firstWord(UNSAFE.getLong(lineAddress), nameLength);
+                word1 = secondWord(UNSAFE.getLong(lineAddress + Long.BYTES), nameLength);
+            }
+            else {
+                word0 = readTail(lineAddress, Math.min(nameLength, Long.BYTES));
+                word1 = readTail(lineAddress + Long.BYTES, Math.clamp(nameLength - Long.BYTES, 0, Long.BYTES));
+            }
+            int hash = hash(word0, word1, nameLength);
+            if (FILTER == null || FILTER.mightContain(word0, word1, hash)) {
+                int number = safe ? parseNumber(UNSAFE.getLong(semicolonAddress + 1)) : parseNumberTail(semicolonAddress + 1, newlineAddress);
+                table.get(word0, word1, lineAddress, nameLength, hash).add(number);
+            }
+            lineAddress = newlineAddress + 1;
+        }
+        return lineAddress;
+    }
+
+    // Batched variant of the loop above: parses a batch of rows first, then loads all of their table slots in one go
+    // so that the misses are independent of each other, and only then compares and updates. Processes whole batches
+    // of rows that can be read 8 bytes at a time and returns the number of rows done.
+    private static int parseBatches(StructuralIndex index, long blockAddress, long safeAddress, Table table, Batch batch) {
+        int[] positions = index.positions;
+        int size = batch.hashes.length;
+        int rows = index.count / 2;
+        int mask = TABLE_SIZE - 1;
+        long lineAddress = blockAddress;
+        int row = 0;
+        for (; row + size <= rows && blockAddress + positions[2 * (row + size) - 1] < safeAddress; row += size) {
+            for (int i = 0; i < size; i++) {
+                long semicolonAddress = blockAddress + positions[2 * (row + i)];
+                int nameLength = (int) (semicolonAddress - lineAddress);
+                batch.nameAddresses[i] = lineAddress;
+                batch.nameLengths[i] = nameLength;
+                batch.words0[i] = firstWord(UNSAFE.getLong(lineAddress), nameLength);
+                batch.words1[i] = secondWord(UNSAFE.getLong(lineAddress + Long.BYTES), nameLength);
+                batch.hashes[i] = hash(batch.words0[i], batch.words1[i], nameLength);
+                if (FILTER != null && !FILTER.mightContain(batch.words0[i], batch.words1[i], batch.hashes[i])) {
+                    // Names are never empty, this marks the row as filtered out and its number is not decoded.
+                    batch.nameLengths[i] = 0;
+                }
+                else {
+                    batch.numbers[i] = parseNumber(UNSAFE.getLong(semicolonAddress + 1));
+                }
+                lineAddress = blockAddress + positions[2 * (row + i) + 1] + 1;
+            }
+            for (int i = 0; i < size; i++) {
+                int slot = batch.hashes[i] & mask;
+                boolean hit = ((table.shortKeys[2 * slot] ^ batch.words0[i]) | (table.shortKeys[2 * slot + 1] ^ batch.words1[i])) == 0;
+                batch.slots[i] = hit ? table.shortResults[slot] : null;
+            }
+            for (int i = 0; i < size; i++) {
+                if (FILTER != null && batch.nameLengths[i] == 0) {
+                    continue;
+                }
+                Result result = batch.nameLengths[i] <= SHORT_NAME_LENGTH ? batch.slots[i] : null;
+                // The slot may be empty or taken by another name, also when an earlier row of this batch inserted it.
+                if (result == null) {
+                    result = table.get(batch.words0[i], batch.words1[i], batch.nameAddresses[i], batch.nameLengths[i], batch.hashes[i]);
+                }
+                result.add(batch.numbers[i]);
+            }
+        }
+        return row;
+    }
+
+    // Splits the rows of the block into STREAMS sub-ranges and advances one row of each per iteration. The rows of
+    // different sub-ranges do not depend on each other, so their hash, lookup and decode chains can execute in
+    // parallel. Returns the number of rows done, the remainder is left to the loop in parseBlock.
+    private static int parseStreams(StructuralIndex index, long blockAddress, long safeAddress, Table table) {
+        int[] positions = index.positions;
+        int streams = Math.min(STREAMS, 3);
+        int perStream = index.count / 2 / streams;
+        if (perStream == 0 || blockAddress + positions[2 * streams * perStream - 1] >= safeAddress) {
+            return 0;
+        }
+
+        long lineA = blockAddress;
+        long lineB = blockAddress + positions[2 * perStream - 1] + 1;
+        int rowA = 0;
+        int rowB = perStream;
+        if (streams == 2) {
+            for (int i = 0; i < perStream; i++) {
+                lineA = parseRow(positions, blockAddress, lineA, rowA + i, table);
+                lineB = parseRow(positions, blockAddress, lineB, rowB + i, table);
+            }
+        }
+        else {
+            long lineC = blockAddress + positions[4 * perStream - 1] + 1;
+            int rowC = 2 * perStream;
+            for (int i = 0; i < perStream; i++) {
+                lineA = parseRow(positions, blockAddress, lineA, rowA + i, table);
+                lineB = parseRow(positions, blockAddress, lineB, rowB + i, table);
+                lineC = parseRow(positions, blockAddress, lineC, rowC + i, table);
+            }
+        }
+        return streams * perStream;
+    }
+
+    // Parses a row that can be read 8 bytes at a time, returns the address of the next row.
+    private static long parseRow(int[] positions, long blockAddress, long lineAddress, int row, Table table) {
+        long semicolonAddress = blockAddress + positions[2 * row];
+        int nameLength = (int) (semicolonAddress - lineAddress);
+        long word0 = firstWord(UNSAFE.getLong(lineAddress), nameLength);
+        long word1 = secondWord(UNSAFE.getLong(lineAddress + Long.BYTES), nameLength);
+        int hash = hash(word0, word1, nameLength);
+        if (FILTER == null || FILTER.mightContain(word0, word1, hash)) {
+            table.get(word0, word1, lineAddress, nameLength, hash).add(parseNumber(UNSAFE.getLong(semicolonAddress + 1)));
+        }
+        return blockAddress + positions[2 * row + 1] + 1;
+    }
+
+    // Stage two of onebrc.buckets: every row contributes a ';' after the name, a ';' after the timestamp and a '\n',
+    // the separators of a row cut off at the end of the block are left for the next block. Rows before lowAddress
+    // cannot be read. Returns the address of the first row not processed.
+    private static long parseTimedBlock(StructuralIndex index, long blockAddress, long safeAddress, long lowAddress, TimedTable table) {
+        int[] positions = index.positions;
+        long lineAddress = blockAddress;
+        for (int i = 0; i < index.count - 2; i += 3) {
+            long semicolonAddress = blockAddress + positions[i];
+            long timestampEnd = blockAddress + positions[i + 1];
+            long newlineAddress = blockAddress + positions[i + 2];
+            int nameLength = (int) (semicolonAddress - lineAddress);
+
+            boolean safe = newlineAddress < safeAddress;
+            long word0;
+            long word1;
+            if (safe) {
+                word0 = firstWord(UNSAFE.getLong(lineAddress), nameLength);
+                word1 = secondWord(UNSAFE.getLong(lineAddress + Long.BYTES), nameLength);
+            }
+            else {
+                word0 = readTail(lineAddress, Math.min(nameLength, Long.BYTES));
+                word1 = readTail(lineAddress + Long.BYTES, Math.clamp(nameLength - Long.BYTES, 0, Long.BYTES));
+            }
+            int hash = hash(word0, word1, nameLength);
+            if (FILTER == null || FILTER.mightContain(word0, word1, hash)) {
+                long timestamp = parseTimestamp(semicolonAddress + 1, timestampEnd, lowAddress);
+                int number = safe ? parseNumber(UNSAFE.getLong(timestampEnd + 1)) : parseNumberTail(timestampEnd + 1, newlineAddress);
+                table.get(word0, word1, lineAddress, nameLength, hash, timestamp / BUCKET_SECONDS).add(number);
+            }
+            lineAddress = newlineAddress + 1;
+        }
+        return lineAddress;
+    }
+
+    // The first 8 bytes of the name, bytes past its end masked out.
+    private static long firstWord(long word, int nameLength) {
+        return word & (-1L >>> ((Long.BYTES - Math.min(nameLength, Long.BYTES)) << 3));
+    }
+
+    // The second 8 bytes of the name, bytes past its end masked out.
+    private static long secondWord(long word, int nameLength) {
+        return nameLength > Long.BYTES ? word & (-1L >>> ((SHORT_NAME_LENGTH - Math.min(nameLength, SHORT_NAME_LENGTH)) << 3)) : 0;
+    }
+
+    // Hash of the first (up to) 16 bytes of the name and its length, longer names sharing a prefix are told apart
+    // by the probing.
+    private static int hash(long word0, long word1, int nameLength) {
+        long h = (word0 ^ Long.rotateLeft(word1, 29) ^ nameLength) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private static final long DOT_BITS = 0x10101000;
+    private static final long MAGIC_MULTIPLIER = (100 * 0x1000000 + 10 * 0x10000 + 1);
+
+    // Branch-free decode of a number of the form -?\d?\d\.\d, see CalculateAverage_merykitty#parseDataPoint.
+    private static int parseNumber(long word) {
+        int decimalSepPos = Long.numberOfTrailingZeros(~word & DOT_BITS);
+        long signed = (~word << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        long digits = ((word & designMask) << (28 - decimalSepPos)) & 0x0F000F0F00L;
+        long absValue = ((digits * MAGIC_MULTIPLIER) >>> 32) & 0x3FF;
+        return (int) ((absValue ^ signed) - signed);
+    }
+
+    // Tail processing version of the above, do not over-fetch and be simple.
+    private static int parseNumberTail(long address, long newlineAddress) {
+        boolean negative = UNSAFE.getByte(address) == '-';
+        int number = 0;
+        for (long i = negative ? address + 1 : address; i < newlineAddress; i++) {
+            byte b = UNSAFE.getByte(i);
+            if (b != '.') {
+                number = number * 10 + (b - '0');
+            }
+        }
+        return negative ? -number : number;
+    }
+
+    // Decodes the unsigned decimal in [start, end) 8 digits at a time: the 8 bytes ending at end are loaded in one go,
+    // which only reads back into the row, or the rows before it. Up to 16 digits, the current epoch has 10.
+    private static long parseTimestamp(long start, long end, long lowAddress) {
+        int length = (int) (end - start);
+        if (length > 2 * Long.BYTES || end - 2 * Long.BYTES < lowAddress) {
+            long value = 0;
+            for (long i = start; i < end; i++) {
+                value = value * 10 + (UNSAFE.getByte(i) - '0');
+            }
+            return value;
+        }
+        long low = parseDigits(UNSAFE.getLong(end - Long.BYTES), Math.min(length, Long.BYTES));
+        return length > Long.BYTES ? parseDigits(UNSAFE.getLong(end - 2 * Long.BYTES), length - Long.BYTES) * 100_000_000 + low : low;
+    }
+
+    // SWAR decode of the last digits bytes of the word, which hold the digits in reading order, see Lemire's "Quickly
+    // parsing eight digits". The bytes before them are cleared and count as leading zeros.
+    private static long parseDigits(long word, int digits) {
+        long value = word & (-1L << ((Long.BYTES - digits) << 3));
+        value = ((value & 0x0F0F0F0F0F0F0F0FL) * 2561) >>> 8;
+        value = ((value & 0x00FF00FF00FF00FFL) * 6553601) >>> 16;
+        return ((value & 0x0000FFFF0000FFFFL) * 42949672960001L) >>> 32;
+    }
+
+    private static long readTail(long address, int length) {
+        long word = 0;
+        for (int i = 0; i < length; i++) {
+            word |= (UNSAFE.getByte(address + i) & 0xFFL) << (i << 3);
+        }
+        return word;
+    }
+
+    private static boolean nameEquals(long a, long b, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(a + i) != UNSAFE.getByte(b + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Splits the file into segments starting at a row, returned as offsets into the mapping.
+    private static long[] getSegments(MemorySegment data, int numberOfChunks) {
+        long fileSize = data.byteSize();
+        long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+        long[] chunks = new long[numberOfChunks + 1];
+        for (int i = 1; i < numberOfChunks; ++i) {
+            long chunkOffset = Math.max(chunks[i - 1], i * segmentSize);
+            // Align to first row start.
+            while (chunkOffset < fileSize && data.get(ValueLayout.JAVA_BYTE, chunkOffset++) != '\n') {
+                // nop
+            }
+            chunks[i] = Math.min(chunkOffset, fileSize);
+        }
+        chunks[numberOfChunks] = fileSize;
+        return chunks;
+    }
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}